@@ -0,0 +1,148 @@
+package us.hxbc.clusterhq.queue;
+
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * post and get of a single DataStore. Concurrency is JMH's thread count,
+ * latency percentiles come from -bm sample, e.g.
+ *
+ * -Djmh.args="DataStoreBenchmark -t 4 -bm sample -tu us"
+ *
+ * durability only matters to post.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class DataStoreBenchmark {
+    // how much get reads from, so it's mostly in the page cache
+    private static final long GET_BYTES = 64 * 1024 * 1024;
+
+    @Param({"100", "4096", "65536"})
+    public int messageSize;
+
+    @Param({"1048576", "67108864"})
+    public long chunkSize;
+
+    @Param({"0"})
+    public long tailCacheBytes;
+
+    @Param({"always", "batched", "os"})
+    public String durability;
+
+    private byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        payload = new byte[messageSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+    }
+
+    DataStore open(Path dir) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("readCache.tailBytes", Long.toString(tailCacheBytes));
+        props.setProperty("durability", durability);
+        return new DataStore(dir, chunkSize, 0, new TopicConfig(props));
+    }
+
+    @State(Scope.Benchmark)
+    public static class Posts {
+        Path dir;
+        DataStore ds;
+        ScheduledExecutorService syncer;
+
+        @Setup(Level.Trial)
+        public void setup(DataStoreBenchmark b) throws IOException {
+            dir = TempDirs.create("posts");
+            ds = b.open(dir);
+            // what Queue does for batched durability
+            syncer = Executors.newSingleThreadScheduledExecutor();
+            syncer.scheduleAtFixedRate(() -> {
+                try {
+                    ds.sync();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        }
+
+        @TearDown(Level.Iteration)
+        public void gc() {
+            ds.gc(ds.getNextLSN());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            syncer.shutdownNow();
+            ds.close();
+            TempDirs.delete(dir);
+        }
+    }
+
+    /**
+     * A log that's written once for get to read at random.
+     */
+    @State(Scope.Benchmark)
+    public static class Log {
+        Path dir;
+        DataStore ds;
+        long[] lsns;
+
+        @Setup(Level.Trial)
+        public void setup(DataStoreBenchmark b) throws IOException {
+            dir = TempDirs.create("log");
+            ds = b.open(dir);
+            lsns = new long[(int) Math.max(1, GET_BYTES / b.messageSize)];
+            for (int i = 0; i < lsns.length; i++) {
+                lsns[i] = ds.getNextLSN();
+                ds.post(new ByteArrayInputStream(b.payload));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            ds.close();
+            TempDirs.delete(dir);
+        }
+    }
+
+    @Benchmark
+    public long post(Posts posts) throws IOException {
+        return posts.ds.post(new ByteArrayInputStream(payload));
+    }
+
+    @Benchmark
+    public long get(Log log) throws IOException {
+        DataStore.Message m = log.ds.get(log.lsns[ThreadLocalRandom.current().nextInt(log.lsns.length)]);
+        try {
+            return ByteStreams.copy(m.in, ByteStreams.nullOutputStream());
+        } finally {
+            m.in.close();
+        }
+    }
+}
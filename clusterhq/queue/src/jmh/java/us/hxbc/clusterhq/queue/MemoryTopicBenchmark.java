@@ -0,0 +1,62 @@
+package us.hxbc.clusterhq.queue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A publish followed by the get of the same message on a MemoryTopic,
+ * which is the least it takes from publish to consume. With more threads
+ * they all publish to and consume from the same subscription, e.g.
+ *
+ * -Djmh.args="MemoryTopicBenchmark -t 4 -bm sample"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class MemoryTopicBenchmark {
+    @Param({"100", "4096"})
+    public int messageSize;
+
+    @Param({"overwrite", "drop"})
+    public String overflow;
+
+    private MemoryTopic topic;
+    private List<byte[]> payload;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Properties props = new Properties();
+        props.setProperty("storage", "memory");
+        props.setProperty("memory.overflow", overflow);
+        topic = new MemoryTopic(new TopicConfig(props));
+        topic.subscribe("user");
+        byte[] bytes = new byte[messageSize];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        payload = Collections.singletonList(bytes);
+    }
+
+    @Benchmark
+    public DataStore.Message roundTrip() {
+        topic.post(payload, null, null);
+        return topic.get("user");
+    }
+}
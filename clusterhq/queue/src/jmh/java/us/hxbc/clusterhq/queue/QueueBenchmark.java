@@ -0,0 +1,121 @@
+package us.hxbc.clusterhq.queue;
+
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishers and consumers of one Queue running at the same time. Every
+ * subscriber gets every message. Each consumer thread goes round all the
+ * subscribers, starting from a different one. The thread counts can be changed with -tg, e.g.
+ *
+ * -Djmh.args="QueueBenchmark -tg 2,8 -p subscribers=128"
+ *
+ * consume counts empty polls as operations, delivered counts messages.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class QueueBenchmark {
+    @Param({"100", "4096"})
+    public int messageSize;
+
+    @Param({"1", "16", "128"})
+    public int subscribers;
+
+    @Param({"1", "1000"})
+    public int checkpointEvery;
+
+    @Param({"1048576"})
+    public long chunkSize;
+
+    private Path dir;
+    private Queue queue;
+    private byte[] payload;
+    private final AtomicInteger consumers = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = TempDirs.create("queue");
+        Properties props = new Properties();
+        props.setProperty("checkpoint.every", Integer.toString(checkpointEvery));
+        queue = new Queue(dir, chunkSize, new TopicConfig(props));
+        for (int i = 0; i < subscribers; i++) {
+            queue.subscribe("user" + i);
+        }
+        payload = new byte[messageSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+    }
+
+    @TearDown(Level.Iteration)
+    public void gc() {
+        queue.gcNow();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        queue.stop();
+        TempDirs.delete(dir);
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Consumer {
+        public long delivered;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup(QueueBenchmark b) {
+            next = b.consumers.getAndIncrement();
+        }
+    }
+
+    @Benchmark
+    @Group("pubsub")
+    @GroupThreads(1)
+    public void publish() throws IOException {
+        queue.post(new ByteArrayInputStream(payload));
+    }
+
+    @Benchmark
+    @Group("pubsub")
+    @GroupThreads(4)
+    public long consume(Consumer c) throws IOException {
+        String user = "user" + (c.next++ % subscribers);
+        DataStore.Message m = queue.get(user);
+        if (m.in == null) {
+            return 0;
+        }
+        try {
+            c.delivered++;
+            return ByteStreams.copy(m.in, ByteStreams.nullOutputStream());
+        } finally {
+            m.in.close();
+        }
+    }
+}
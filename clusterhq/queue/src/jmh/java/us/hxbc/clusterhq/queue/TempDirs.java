@@ -0,0 +1,31 @@
+package us.hxbc.clusterhq.queue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Scratch directories for the benchmarks, under bench.dir if it's set so
+ * they can be pointed at the disk that matters.
+ */
+class TempDirs {
+    private TempDirs() {
+    }
+
+    static Path create(String prefix) throws IOException {
+        String parent = System.getProperty("bench.dir");
+        return parent == null ? Files.createTempDirectory(prefix)
+                : Files.createTempDirectory(Files.createDirectories(Paths.get(parent)), prefix);
+    }
+
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
@@ -1,53 +1,136 @@
 package us.hxbc.clusterhq.queue;
 
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Longs;
+import org.glassfish.grizzly.http.io.OutputBuffer;
 import org.glassfish.grizzly.http.server.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import static com.google.common.base.Throwables.propagate;
 import static java.util.Objects.requireNonNull;
 
 @Path("/")
 public class Api {
+    static final String SKIPPED_HEADER = "X-Skipped";
+    static final String DURABILITY_HEADER = "X-Durability";
+    static final String LEASE_HEADER = "X-Lease";
+    static final String REDELIVERED_HEADER = "X-Redelivered";
+    private final Logger logger = LoggerFactory.getLogger(getClass());
     private final java.nio.file.Path dir;
     private final long CHUNK_SIZE;
-    private Map<String, Queue> topics = new HashMap<>();
+    private final GCScheduler gcScheduler;
+    // a topic is in topics once someone started opening it, the future
+    // completes when it's open
+    private final Map<String, CompletableFuture<Topic>> topics = new HashMap<>();
+    private final Set<String> unopened = new HashSet<>(); // guarded by topics
+    private final ExecutorService fetchExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors());
+    private final ExecutorService recoveryExecutor; // null if topics are only opened on first access
+    private volatile boolean stopping;
 
-    Api(java.nio.file.Path dir, long chunkSize) throws IOException {
+    Api(java.nio.file.Path dir, long chunkSize, GCScheduler gcScheduler) throws IOException {
+        this(dir, chunkSize, gcScheduler, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Existing topics are opened in the background on recoveryThreads
+     * threads, or with 0 only when they are first used. Either way a
+     * request for a topic that isn't open yet opens it right away.
+     */
+    Api(java.nio.file.Path dir, long chunkSize, GCScheduler gcScheduler, int recoveryThreads)
+            throws IOException {
+        if (recoveryThreads < 0) {
+            throw new IllegalArgumentException(recoveryThreads + " < 0");
+        }
         this.dir = requireNonNull(dir);
         this.CHUNK_SIZE = chunkSize;
+        this.gcScheduler = requireNonNull(gcScheduler);
+        recoveryExecutor = recoveryThreads == 0 ? null : Executors.newFixedThreadPool(recoveryThreads);
         init();
     }
 
+    /**
+     * Only finds out which topics there are, opening them can take a while
+     * with many subscriptions or chunks.
+     */
     private void init() throws IOException {
-        Files.list(dir)
-                .filter(p -> Files.isDirectory(p.resolve("data")) &&
-                        Files.isDirectory(p.resolve("subscriptions")))
-                .forEach(p -> {
+        List<String> names = new ArrayList<>();
+        try (Stream<java.nio.file.Path> files = Files.list(dir)) {
+            // a memory topic only has its config
+            files.filter(p -> (Files.isDirectory(p.resolve("data")) &&
+                    Files.isDirectory(p.resolve("subscriptions"))) ||
+                    Files.exists(p.resolve(TopicConfig.FILE_NAME)))
+                    .forEach(p -> names.add(p.getFileName().toString()));
+        }
+        synchronized (topics) {
+            unopened.addAll(names);
+        }
+
+        if (recoveryExecutor != null) {
+            for (String name : names) {
+                recoveryExecutor.execute(() -> {
+                    if (stopping) {
+                        return;
+                    }
                     try {
-                        String name = p.getFileName().toString();
-                        Queue q = new Queue(p, CHUNK_SIZE);
-                        topics.put(name, q);
-                        q.spawnGCThread();
-                    } catch (IOException e) {
-                        throw propagate(e);
+                        getTopic(name);
+                    } catch (IOException | RuntimeException e) {
+                        logger.error("failed to open topic " + name, e);
                     }
                 });
+            }
+            recoveryExecutor.shutdown();
+        }
     }
 
     public void stop() {
+        stopping = true;
+        fetchExecutor.shutdown();
+        if (recoveryExecutor != null) {
+            try {
+                recoveryExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         synchronized (topics) {
-            topics.values().forEach(q -> q.stop());
+            // topics that are still being opened are stopped once they are
+            topics.values().forEach(f -> f.thenAccept(Topic::stop));
         }
     }
 
@@ -59,65 +142,492 @@ public class Api {
         return Response.ok().build();
     }
 
-    private Queue ensureTopic(@PathParam("topic") String topic) throws IOException {
-        Queue q;
+    private Topic openTopic(java.nio.file.Path p) throws IOException {
+        TopicConfig config = TopicConfig.load(p);
+        if (config.memory) {
+            return new MemoryTopic(config);
+        }
+        long chunkSize = config.chunkSize;
+        if (chunkSize == 0) {
+            // existing chunks only make sense with the size they were
+            // written with, so the default can't apply once there's data
+            chunkSize = CHUNK_SIZE;
+            TopicConfig.append(p, "chunk.size", Long.toString(chunkSize));
+        }
+        if (config.partitions > 1 || Files.isDirectory(p.resolve("data").resolve("0"))) {
+            return new PartitionedTopic(p, chunkSize, config);
+        } else {
+            return new Queue(p, chunkSize, config);
+        }
+    }
+
+    /**
+     * Returns the topic, or null if there's no such topic. Opens the topic
+     * if it hasn't been yet.
+     */
+    Topic getTopic(String topic) throws IOException {
+        return lookup(topic, false);
+    }
+
+    Topic ensureTopic(String topic) throws IOException {
+        return lookup(topic, true);
+    }
+
+    /**
+     * Concurrent lookups of a topic that isn't open yet wait for the first
+     * one to open it. If that fails the next lookup tries again.
+     */
+    private Topic lookup(String topic, boolean create) throws IOException {
+        CompletableFuture<Topic> f;
+        CompletableFuture<Topic> mine = null;
+        boolean exists = false;
         synchronized (topics) {
-            q = topics.get(topic);
-            if (q == null) {
-                java.nio.file.Path p = dir.resolve(topic);
-                Files.createDirectory(p);
-                q = new Queue(p, CHUNK_SIZE);
-                topics.put(topic, q);
-                q.spawnGCThread();
+            f = topics.get(topic);
+            if (f == null) {
+                exists = unopened.remove(topic);
+                if (!exists && !create) {
+                    return null;
+                }
+                f = mine = new CompletableFuture<>();
+                topics.put(topic, f);
             }
         }
-        return q;
+
+        if (mine != null) {
+            java.nio.file.Path p = dir.resolve(topic);
+            try {
+                if (!exists) {
+                    Files.createDirectory(p);
+                }
+                Topic q = openTopic(p);
+                try {
+                    q.start(gcScheduler);
+                } catch (RuntimeException e) {
+                    q.stop();
+                    throw e;
+                }
+                mine.complete(q);
+            } catch (IOException | RuntimeException e) {
+                synchronized (topics) {
+                    topics.remove(topic);
+                    if (exists) {
+                        unopened.add(topic);
+                    }
+                }
+                mine.completeExceptionally(e);
+            }
+        }
+
+        try {
+            return f.join();
+        } catch (CompletionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the topics that are open, by name.
+     */
+    private Map<String, Topic> openTopics() {
+        Map<String, Topic> open = new TreeMap<>();
+        synchronized (topics) {
+            topics.forEach((name, f) -> {
+                if (f.isDone() && !f.isCompletedExceptionally()) {
+                    open.put(name, f.join());
+                }
+            });
+        }
+        return open;
     }
 
     @Path("/{topic}/{username}")
     @DELETE
     public Response unsubscribe(@PathParam("topic") String topic,
                             @PathParam("username") String username) throws IOException {
-        Queue q;
-        synchronized (topics) {
-            q = topics.get(topic);
+        Topic q = getTopic(topic);
+        if (q == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        } else {
+            q.unsubscribe(username);
+            return Response.ok().build();
         }
+    }
 
+    /**
+     * Acknowledges a lease returned by get() with lease.
+     */
+    @Path("/{topic}/{username}/{lease}")
+    @DELETE
+    public Response ack(@PathParam("topic") String topic,
+                        @PathParam("username") String username,
+                        @PathParam("lease") String lease) throws IOException {
+        Topic q = getTopic(topic);
         if (q == null) {
             return Response.status(Response.Status.NOT_FOUND).build();
         } else {
-            q.unsubscribe(username);
+            q.ack(username, lease);
             return Response.ok().build();
         }
     }
 
+    /**
+     * Publishes a message. On a partitioned topic messages with the same key
+     * go to the same partition and are delivered in order.
+     *
+     * With batch the body is any number of messages, each prefixed with its
+     * length as a 64 bit big endian integer like the batches get() returns.
+     * They are appended together and either all or none of them are
+     * delivered. The response has the LSN of each message, one per line.
+     *
+     * durability overrides the topic's, the X-Durability header of the
+     * response says which one was applied.
+     */
     @Path("/{topic}")
     @POST
     public Response publish(@PathParam("topic") String topic,
-                        @Context Request request) throws IOException {
-        ensureTopic(topic).post(request.getInputStream());
-        request.getInputStream().close();
-        return Response.ok().build();
+                            @QueryParam("key") String key,
+                            @QueryParam("batch") boolean batch,
+                            @QueryParam("durability") String durability,
+                            @Context Request request) throws IOException {
+        Durability d = null;
+        List<byte[]> payloads;
+        try {
+            if (durability != null) {
+                d = Durability.parse(durability);
+            }
+            payloads = batch ? readBatch(request.getInputStream()) :
+                    Collections.singletonList(ByteStreams.toByteArray(request.getInputStream()));
+        } catch (IllegalArgumentException e) {
+            payloads = null;
+        } finally {
+            request.getInputStream().close();
+        }
+        if (payloads == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        Topic q = ensureTopic(topic);
+        long[] lsns = q.post(payloads, key, d);
+        Response.ResponseBuilder response = Response.ok()
+                .header(DURABILITY_HEADER, q.getDurability(d));
+        if (batch) {
+            StringBuilder body = new StringBuilder();
+            for (long lsn : lsns) {
+                body.append(lsn).append('\n');
+            }
+            response.entity(body.toString()).type(MediaType.TEXT_PLAIN);
+        }
+        return response.build();
+    }
+
+    /**
+     * Returns the messages of a batch, or null if it's malformed.
+     */
+    private static List<byte[]> readBatch(InputStream in) throws IOException {
+        List<byte[]> payloads = new ArrayList<>();
+        byte[] header = new byte[8];
+        int n;
+        while ((n = ByteStreams.read(in, header, 0, header.length)) != 0) {
+            if (n != header.length) {
+                return null;
+            }
+            long length = Longs.fromByteArray(header);
+            if (length < 0 || length > Integer.MAX_VALUE - 8) {
+                return null;
+            }
+            // don't trust the length with an allocation
+            byte[] payload = ByteStreams.toByteArray(ByteStreams.limit(in, length));
+            if (payload.length != length) {
+                return null;
+            }
+            payloads.add(payload);
+        }
+        return payloads;
     }
 
+    /**
+     * Without max this returns the next message as is. With max (and
+     * optionally maxBytes) it returns up to that many consecutive messages,
+     * each prefixed with its length as a 64 bit big endian integer.
+     *
+     * With wait, a request that would have returned 204 is parked for up
+     * to that many milliseconds until a message is posted to the topic.
+     *
+     * If retention deleted messages the subscriber hadn't got yet, the
+     * X-Skipped header says how many bytes of the log were skipped.
+     *
+     * With lease the subscription is a consumer group and the messages are
+     * only leased for that many milliseconds, see Topic.lease(). They are
+     * always returned like a batch, with the lease id in the X-Lease header
+     * and X-Redelivered set if an earlier lease of them timed out. A parked
+     * request doesn't notice leases timing out until something is posted.
+     */
     @Path("/{topic}/{username}")
     @GET
-    public Response get(@PathParam("topic") String topic,
-                        @PathParam("username") String username) throws IOException {
-        Queue q;
-        synchronized (topics) {
-            q = topics.get(topic);
+    public void get(@PathParam("topic") String topic,
+                    @PathParam("username") String username,
+                    @QueryParam("max") Integer max,
+                    @QueryParam("maxBytes") Long maxBytes,
+                    @QueryParam("wait") Long wait,
+                    @QueryParam("lease") Long lease,
+                    @Context Request request,
+                    @Suspended AsyncResponse response) {
+        Topic q;
+        try {
+            q = getTopic(topic);
+        } catch (IOException | RuntimeException e) {
+            response.resume(e);
+            return;
         }
 
         if (q == null) {
-            return Response.status(Response.Status.NOT_FOUND).build();
+            response.resume(Response.status(Response.Status.NOT_FOUND).build());
+            return;
+        }
+        if ((max != null && max <= 0) || (maxBytes != null && maxBytes <= 0) ||
+                (wait != null && wait < 0) || (lease != null && lease <= 0)) {
+            response.resume(Response.status(Response.Status.BAD_REQUEST).build());
+            return;
+        }
+
+        Fetch fetch = new Fetch(q, username, max, maxBytes == null ? Long.MAX_VALUE : maxBytes, lease,
+                request.getResponse(), response);
+        if (wait == null || wait == 0) {
+            fetch.now();
         } else {
-            DataStore.Message m = q.get(username);
-            if (m.in == null) {
-                return Response.noContent().build();
+            fetch.park(wait);
+        }
+    }
+
+    /**
+     * Returns the metrics of every open topic in the Prometheus text format.
+     * A topic called metrics can't be looked at with getStats().
+     */
+    @Path("/metrics")
+    @GET
+    @Produces("text/plain; version=0.0.4")
+    public Response getMetrics() {
+        MetricsWriter out = new MetricsWriter();
+        openTopics().forEach((name, q) -> q.appendMetrics(out, MetricsWriter.label("topic", name)));
+        gcScheduler.appendMetrics(out);
+        return Response.ok(out.toString()).build();
+    }
+
+    /**
+     * Returns the stats of a topic, one "name value" pair per line.
+     */
+    @Path("/{topic}")
+    @GET
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response getStats(@PathParam("topic") String topic) throws IOException {
+        Topic q = getTopic(topic);
+        if (q == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        StringBuilder stats = new StringBuilder();
+        q.appendStats(stats);
+        return Response.ok(stats.toString()).build();
+    }
+
+    @GET
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response getServerStats() {
+        StringBuilder stats = new StringBuilder();
+        synchronized (topics) {
+            stats.append("topics ").append(topics.size() + unopened.size()).append('\n');
+            stats.append("topics.unopened ").append(unopened.size()).append('\n');
+        }
+        gcScheduler.appendStats(stats);
+        return Response.ok(stats.toString()).build();
+    }
+
+    /**
+     * Fetch is a GET that may be parked. A parked fetch doesn't hold any
+     * thread, it's registered as a waiter on the queue and the poll is
+     * retried on fetchExecutor when a message is posted.
+     */
+    private class Fetch implements Runnable {
+        private final Topic q;
+        private final String username;
+        private final Integer max;
+        private final long maxBytes;
+        private final Long lease;
+        private final org.glassfish.grizzly.http.server.Response grizzlyResponse;
+        private final AsyncResponse response;
+        private boolean done; // guarded by this
+
+        Fetch(Topic q, String username, Integer max, long maxBytes, Long lease,
+              org.glassfish.grizzly.http.server.Response grizzlyResponse, AsyncResponse response) {
+            this.q = requireNonNull(q);
+            this.username = requireNonNull(username);
+            this.max = max;
+            this.maxBytes = maxBytes;
+            this.lease = lease;
+            this.grizzlyResponse = requireNonNull(grizzlyResponse);
+            this.response = requireNonNull(response);
+        }
+
+        void now() {
+            try {
+                response.resume(poll());
+            } catch (IOException | RuntimeException e) {
+                response.resume(e);
+            }
+        }
+
+        void park(long wait) {
+            response.setTimeout(wait, TimeUnit.MILLISECONDS);
+            response.setTimeoutHandler(r -> timeout());
+            retry();
+        }
+
+        /**
+         * Called on the publisher's thread.
+         */
+        @Override
+        public void run() {
+            try {
+                fetchExecutor.execute(this::retry);
+            } catch (RejectedExecutionException e) {
+                // shutting down
+            }
+        }
+
+        private synchronized void retry() {
+            if (done) {
+                return;
+            }
+
+            // register before polling so we can't miss a post in between
+            if (!q.await(this)) {
+                finish(Response.status(Response.Status.SERVICE_UNAVAILABLE).build());
+                return;
+            }
+            try {
+                Response r = poll();
+                if (r.getStatus() != Response.Status.NO_CONTENT.getStatusCode()) {
+                    finish(r);
+                }
+            } catch (IOException | RuntimeException e) {
+                finish(e);
+            }
+        }
+
+        private synchronized void timeout() {
+            if (!done) {
+                finish(Response.noContent().build());
+            }
+        }
+
+        private void finish(Object result) {
+            done = true;
+            q.cancel(this);
+            if (result instanceof Throwable) {
+                response.resume((Throwable) result);
+            } else {
+                response.resume(result);
+            }
+        }
+
+        private Response poll() throws IOException {
+            if (lease != null) {
+                Lease l = q.lease(username, max == null ? 1 : max, maxBytes, lease);
+                if (l == null) {
+                    return Response.noContent().build();
+                }
+                Response.ResponseBuilder builder = batch(l.messages).header(LEASE_HEADER, l.id);
+                return direct((l.redelivered ? builder.header(REDELIVERED_HEADER, true) : builder).build());
+            } else if (max != null) {
+                List<DataStore.Message> messages = q.get(username, max, maxBytes);
+                if (messages.isEmpty()) {
+                    return Response.noContent().build();
+                } else {
+                    return direct(batch(messages).build());
+                }
             } else {
-                return Response.ok(m.in).build();
+                DataStore.Message m = q.get(username);
+                if (m.in == null) {
+                    return Response.noContent().build();
+                } else if (m.data != null) {
+                    return direct(skipped(Response.ok(writeMessages(Collections.singletonList(m), grizzlyResponse,
+                            false), MediaType.APPLICATION_OCTET_STREAM_TYPE), m.skipped).build());
+                } else {
+                    return skipped(Response.ok(m.in), m.skipped).build();
+                }
             }
         }
+
+        private Response.ResponseBuilder batch(List<DataStore.Message> messages) {
+            long skipped = 0;
+            for (DataStore.Message m : messages) {
+                skipped += m.skipped;
+            }
+            return skipped(Response.ok(writeMessages(messages, grizzlyResponse),
+                    MediaType.APPLICATION_OCTET_STREAM_TYPE), skipped);
+        }
+
+        /**
+         * Sets the headers of r, whose entity is written by writeMessages(),
+         * on grizzly too. Writing to grizzly commits its own headers before
+         * jersey gets to.
+         */
+        private Response direct(Response r) {
+            r.getStringHeaders().forEach((name, values) -> {
+                grizzlyResponse.setHeader(name, values.get(0));
+                for (String v : values.subList(1, values.size())) {
+                    grizzlyResponse.addHeader(name, v);
+                }
+            });
+            return r;
+        }
+    }
+
+    private static Response.ResponseBuilder skipped(Response.ResponseBuilder builder, long skipped) {
+        return skipped == 0 ? builder : builder.header(SKIPPED_HEADER, skipped);
+    }
+
+    private static StreamingOutput writeMessages(List<DataStore.Message> messages,
+                                                 org.glassfish.grizzly.http.server.Response grizzlyResponse) {
+        return writeMessages(messages, grizzlyResponse, true);
+    }
+
+    /**
+     * Writes messages straight to grizzly so the ones that are in memory
+     * (usually mapped) are handed to the socket without being copied.
+     */
+    private static StreamingOutput writeMessages(List<DataStore.Message> messages,
+                                                 org.glassfish.grizzly.http.server.Response grizzlyResponse,
+                                                 boolean withLength) {
+        return output -> {
+            try {
+                if (!withLength) {
+                    // a single message is sent as is, jersey doesn't know how
+                    // big it is since it never sees the payload
+                    grizzlyResponse.setContentLengthLong(messages.get(0).size);
+                }
+                // commits the headers, after that both streams write to
+                // the same buffer
+                output.flush();
+                OutputBuffer buf = grizzlyResponse.getOutputBuffer();
+                DataOutputStream out = new DataOutputStream(grizzlyResponse.getOutputStream());
+                for (DataStore.Message m : messages) {
+                    if (withLength) {
+                        out.writeLong(m.size);
+                    }
+                    if (m.data != null) {
+                        buf.writeByteBuffer(m.data.duplicate());
+                    } else {
+                        ByteStreams.copy(m.in, out);
+                    }
+                    m.in.close();
+                }
+                out.flush();
+            } finally {
+                for (DataStore.Message m : messages) {
+                    m.in.close();
+                }
+            }
+        };
     }
 }
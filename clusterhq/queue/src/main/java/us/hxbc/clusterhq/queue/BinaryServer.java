@@ -0,0 +1,573 @@
+package us.hxbc.clusterhq.queue;
+
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * BinaryServer serves the topics of an Api over a length prefixed binary
+ * protocol on plain TCP, for clients that can't afford HTTP for small
+ * messages.
+ *
+ * Every request and response is a frame: a 4 byte length of what follows,
+ * then a 1 byte opcode for requests or status for responses. Numbers are
+ * big endian, strings are a 2 byte length followed by UTF-8. The requests
+ * are:
+ *
+ * SUBSCRIBE topic user
+ * PUBLISH topic key payload, where the payload is the rest of the frame
+ * PUBLISH_BATCH topic key count, then count times a 4 byte length and payload
+ * FETCH topic user max(4 bytes) maxBytes(8 bytes)
+ *
+ * An empty key means no key. A successful FETCH responds with how many LSNs
+ * retention skipped (8 bytes), the number of messages (4 bytes), then each
+ * message as a 4 byte length and payload. Any other error responds with a
+ * message string. FETCH doesn't wait for messages.
+ *
+ * The status of an error is NOT_FOUND for a topic or subscription that
+ * doesn't exist, BAD_REQUEST for a request that will never succeed,
+ * UNAVAILABLE for one that may succeed later, like a PUBLISH to a full
+ * memory topic, or ERROR.
+ *
+ * Clients can send requests without waiting for responses, which come
+ * back in the order of the requests. One thread does all the socket I/O,
+ * requests run on a pool of workers that take one connection at a time,
+ * so each connection's requests run in order. Consecutive PUBLISH frames
+ * to the same topic and key are posted together and share a flush, but
+ * each of them succeeds or fails on its own.
+ */
+class BinaryServer implements Closeable {
+    static final byte SUBSCRIBE = 1;
+    static final byte PUBLISH = 2;
+    static final byte PUBLISH_BATCH = 3;
+    static final byte FETCH = 4;
+
+    static final byte OK = 0;
+    static final byte NOT_FOUND = 1;
+    static final byte BAD_REQUEST = 2;
+    static final byte ERROR = 3;
+    static final byte UNAVAILABLE = 4;
+
+    static final int MAX_FRAME = 64 * 1024 * 1024;
+    private static final int READ_BUFFER = 64 * 1024;
+    // stop reading from a connection that has this many requests queued
+    private static final int MAX_PIPELINED = 1024;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Api api;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Thread thread;
+    // connections whose interest ops have to be recomputed
+    private final ConcurrentLinkedQueue<Connection> changed = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    BinaryServer(Api api, int port, int nworkers) throws IOException {
+        this.api = requireNonNull(api);
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newFixedThreadPool(nworkers);
+        thread = new Thread(this::run, "binary-server");
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                selector.select();
+                Connection c;
+                while ((c = changed.poll()) != null) {
+                    c.updateInterest();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    c = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            c.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            synchronized (c) {
+                                c.flush();
+                            }
+                            c.updateInterest();
+                        }
+                    } catch (IOException e) {
+                        logger.debug("closing {}", c.channel, e);
+                        c.close();
+                    } catch (CancelledKeyException e) {
+                        // closed by a worker
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.error("binary server failed", e);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection c = new Connection(channel);
+        c.key = channel.register(selector, SelectionKey.OP_READ, c);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException e) {
+            logger.warn("unable to close", e);
+        }
+    }
+
+    private class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER); // only used by the selector
+        final ArrayDeque<ByteBuffer> requests = new ArrayDeque<>(); // guarded by this
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>(); // guarded by this
+        boolean busy; // guarded by this, a worker is on it
+        boolean paused; // guarded by this, too many requests to read more
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            List<ByteBuffer> frames = new ArrayList<>();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < 1 || length > MAX_FRAME) {
+                    throw new IOException("bad frame length " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    break;
+                }
+                in.position(in.position() + 4);
+                byte[] frame = new byte[length];
+                in.get(frame);
+                frames.add(ByteBuffer.wrap(frame));
+            }
+            // what's left is less than the next frame
+            int needed = in.remaining() >= 4 ? 4 + in.getInt(in.position()) : 4;
+            if (in.capacity() < needed) {
+                // make room for a frame that's bigger than the buffer
+                in = ByteBuffer.allocate(needed).put(in);
+            } else if (in.capacity() > READ_BUFFER && needed <= READ_BUFFER) {
+                // the big frames are done, don't hold on to their buffer
+                in = ByteBuffer.allocate(READ_BUFFER).put(in);
+            } else {
+                in.compact();
+            }
+
+            if (!frames.isEmpty()) {
+                boolean submit;
+                synchronized (this) {
+                    requests.addAll(frames);
+                    submit = !busy;
+                    busy = true;
+                    if (requests.size() >= MAX_PIPELINED) {
+                        paused = true;
+                    }
+                }
+                if (submit) {
+                    try {
+                        workers.execute(this::process);
+                    } catch (RejectedExecutionException e) {
+                        close();
+                        return;
+                    }
+                }
+                updateInterest();
+            }
+        }
+
+        /**
+         * Runs on a worker, handles requests until there are no more.
+         */
+        void process() {
+            while (true) {
+                List<ByteBuffer> frames;
+                boolean resume;
+                synchronized (this) {
+                    if (requests.isEmpty()) {
+                        busy = false;
+                        return;
+                    }
+                    frames = new ArrayList<>(requests);
+                    requests.clear();
+                    resume = paused;
+                    paused = false;
+                }
+                if (resume) {
+                    interestChanged();
+                }
+
+                List<ByteBuffer> responses = new ArrayList<>();
+                for (int i = 0; i < frames.size(); ) {
+                    i = handle(frames, i, responses);
+                }
+                send(responses);
+            }
+        }
+
+        /**
+         * Handles the request at frames[i] and maybe some that follow it,
+         * returns the index of the next request.
+         */
+        private int handle(List<ByteBuffer> frames, int i, List<ByteBuffer> responses) {
+            ByteBuffer frame = frames.get(i);
+            int handled = 1;
+            try {
+                byte op = frame.get();
+                String topic = getString(frame);
+                checkTopic(topic);
+                switch (op) {
+                    case SUBSCRIBE:
+                        api.ensureTopic(topic).subscribe(getString(frame));
+                        responses.add(status(OK));
+                        break;
+                    case PUBLISH: {
+                        String key = getKey(frame);
+                        List<byte[]> payloads = new ArrayList<>();
+                        payloads.add(getRest(frame));
+                        // take the publishes right behind this one as well
+                        while (i + handled < frames.size() &&
+                                isPublish(frames.get(i + handled), topic, key)) {
+                            ByteBuffer next = frames.get(i + handled);
+                            next.position(1);
+                            getString(next);
+                            getString(next);
+                            payloads.add(getRest(next));
+                            handled++;
+                        }
+                        publish(api.ensureTopic(topic), key, payloads, responses);
+                        break;
+                    }
+                    case PUBLISH_BATCH: {
+                        String key = getKey(frame);
+                        int count = frame.getInt();
+                        if (count < 0) {
+                            throw new IllegalArgumentException("negative count");
+                        }
+                        List<byte[]> payloads = new ArrayList<>(Math.min(count, 1024));
+                        for (int n = 0; n < count; n++) {
+                            int length = frame.getInt();
+                            if (length < 0 || length > frame.remaining()) {
+                                throw new IllegalArgumentException("bad message length " + length);
+                            }
+                            byte[] payload = new byte[length];
+                            frame.get(payload);
+                            payloads.add(payload);
+                        }
+                        api.ensureTopic(topic).post(payloads, key, null);
+                        responses.add(status(OK));
+                        break;
+                    }
+                    case FETCH:
+                        responses.addAll(fetch(topic, getString(frame), frame.getInt(), frame.getLong()));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown opcode " + op);
+                }
+                return i + handled;
+            } catch (IOException | RuntimeException e) {
+                ByteBuffer error = failure(e);
+                for (int n = 0; n < handled; n++) {
+                    responses.add(error.duplicate());
+                }
+            }
+            return i + handled;
+        }
+
+        /**
+         * Posts the payloads of consecutive PUBLISH frames together so they
+         * share a flush. Each frame still gets its own response: the batch is
+         * all or nothing, so if it fails they are posted again one by one to
+         * find out which of them can't be.
+         */
+        private void publish(Topic t, String key, List<byte[]> payloads, List<ByteBuffer> responses)
+                throws IOException {
+            try {
+                t.post(payloads, key, null);
+                for (int n = 0; n < payloads.size(); n++) {
+                    responses.add(status(OK));
+                }
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (payloads.size() == 1) {
+                    throw e;
+                }
+            }
+            for (byte[] payload : payloads) {
+                try {
+                    t.post(Collections.singletonList(payload), key, null);
+                    responses.add(status(OK));
+                } catch (IOException | RuntimeException e) {
+                    responses.add(failure(e));
+                }
+            }
+        }
+
+        /**
+         * Returns the error response to a request that threw e.
+         */
+        private ByteBuffer failure(Exception e) {
+            if (e instanceof IllegalArgumentException || e instanceof BufferUnderflowException) {
+                return error(BAD_REQUEST, String.valueOf(e.getMessage()));
+            } else if (e instanceof WebApplicationException) {
+                Response.StatusType info = ((WebApplicationException) e).getResponse().getStatusInfo();
+                return error(getStatus(info), info.getReasonPhrase());
+            }
+            logger.warn("request failed", e);
+            return error(ERROR, String.valueOf(e.getMessage()));
+        }
+
+        private List<ByteBuffer> fetch(String topic, String user, int max, long maxBytes) throws IOException {
+            if (max <= 0 || maxBytes <= 0) {
+                throw new IllegalArgumentException("max and maxBytes have to be positive");
+            }
+            Topic q = api.getTopic(topic);
+            if (q == null) {
+                return Collections.singletonList(error(NOT_FOUND, "no topic " + topic));
+            }
+            List<ByteBuffer> responses = new ArrayList<>();
+            // messages are sent with a 4 byte length
+            List<DataStore.Message> messages = q.get(user, max, Math.min(maxBytes, MAX_FRAME));
+            try {
+                long length = 1 + 8 + 4;
+                long skipped = 0;
+                for (DataStore.Message m : messages) {
+                    length += 4 + m.size;
+                    skipped += m.skipped;
+                }
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException(length + " bytes is too big for a frame");
+                }
+                ByteBuffer header = ByteBuffer.allocate(4 + 1 + 8 + 4);
+                header.putInt((int) length).put(OK).putLong(skipped).putInt(messages.size()).flip();
+                responses.add(header);
+                for (DataStore.Message m : messages) {
+                    responses.add((ByteBuffer) ByteBuffer.allocate(4).putInt((int) m.size).flip());
+                    if (m.data != null) {
+                        responses.add(m.data.duplicate());
+                    } else {
+                        byte[] payload = new byte[(int) m.size];
+                        ByteStreams.readFully(m.in, payload);
+                        responses.add(ByteBuffer.wrap(payload));
+                    }
+                }
+            } finally {
+                for (DataStore.Message m : messages) {
+                    m.in.close();
+                }
+            }
+            return responses;
+        }
+
+        private boolean isPublish(ByteBuffer frame, String topic, String key) {
+            try {
+                if (frame.get(0) != PUBLISH) {
+                    return false;
+                }
+                frame.position(1);
+                return getString(frame).equals(topic) && Objects.equals(getKey(frame), key);
+            } catch (IllegalArgumentException | BufferUnderflowException e) {
+                return false;
+            } finally {
+                frame.position(0);
+            }
+        }
+
+        private void send(List<ByteBuffer> responses) {
+            synchronized (this) {
+                out.addAll(responses);
+                try {
+                    flush();
+                } catch (IOException e) {
+                    logger.debug("closing {}", channel, e);
+                    out.clear();
+                    interestChanged();
+                    return;
+                }
+                if (out.isEmpty()) {
+                    return;
+                }
+            }
+            interestChanged();
+        }
+
+        /**
+         * Writes as much as the socket takes without blocking.
+         */
+        void flush() throws IOException {
+            // guarded by this
+            while (!out.isEmpty()) {
+                ByteBuffer[] bufs = new ByteBuffer[Math.min(out.size(), 64)];
+                Iterator<ByteBuffer> it = out.iterator();
+                for (int n = 0; n < bufs.length; n++) {
+                    bufs[n] = it.next();
+                }
+                channel.write(bufs);
+                while (!out.isEmpty() && !out.peekFirst().hasRemaining()) {
+                    out.removeFirst();
+                }
+                if (bufs[bufs.length - 1].hasRemaining()) {
+                    return;
+                }
+            }
+        }
+
+        private void interestChanged() {
+            changed.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Runs on the selector thread.
+         */
+        void updateInterest() {
+            int ops;
+            synchronized (this) {
+                ops = (paused ? 0 : SelectionKey.OP_READ) | (out.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            }
+            try {
+                key.interestOps(ops);
+            } catch (CancelledKeyException e) {
+                // closed
+            }
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("unable to close {}", channel, e);
+            }
+        }
+    }
+
+    private static void checkTopic(String topic) {
+        if (topic.isEmpty() || topic.equals(".") || topic.equals("..") || topic.contains("/")) {
+            throw new IllegalArgumentException("bad topic " + topic);
+        }
+    }
+
+    private static String getString(ByteBuffer buf) {
+        int length = buf.getShort() & 0xffff;
+        if (length > buf.remaining()) {
+            throw new IllegalArgumentException("bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String getKey(ByteBuffer buf) {
+        String key = getString(buf);
+        return key.isEmpty() ? null : key;
+    }
+
+    private static byte[] getRest(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static byte getStatus(Response.StatusType info) {
+        if (info.getStatusCode() == Response.Status.NOT_FOUND.getStatusCode()) {
+            return NOT_FOUND;
+        } else if (info.getStatusCode() == Response.Status.SERVICE_UNAVAILABLE.getStatusCode()) {
+            return UNAVAILABLE;
+        } else if (info.getFamily() == Response.Status.Family.CLIENT_ERROR) {
+            return BAD_REQUEST;
+        }
+        return ERROR;
+    }
+
+    private static ByteBuffer status(byte status) {
+        ByteBuffer buf = ByteBuffer.allocate(5);
+        buf.putInt(1).put(status).flip();
+        return buf;
+    }
+
+    private static ByteBuffer error(byte status, String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, 0xffff);
+        ByteBuffer buf = ByteBuffer.allocate(4 + 1 + 2 + length);
+        buf.putInt(1 + 2 + length).put(status).putShort((short) length).put(bytes, 0, length).flip();
+        return buf;
+    }
+}
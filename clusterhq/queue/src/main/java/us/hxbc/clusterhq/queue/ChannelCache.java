@@ -0,0 +1,140 @@
+package us.hxbc.clusterhq.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * ChannelCache keeps a bounded number of read only channels open so
+ * readers don't have to open the chunk for every message. Channels are
+ * reference counted, a channel that's evicted or invalidated is only closed
+ * once everyone that acquired it has released it.
+ *
+ * A channel can also be mapped for files that don't change anymore.
+ */
+class ChannelCache implements Closeable {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final LinkedHashMap<Path, Handle> channels;
+
+    ChannelCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(capacity + " <= 0");
+        }
+        channels = new LinkedHashMap<Path, Handle>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Handle> eldest) {
+                if (size() > capacity) {
+                    eldest.getValue().evict();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns a handle to a read only channel of p, the caller has to close
+     * the handle when it's done with it.
+     */
+    synchronized Handle acquire(Path p) throws IOException {
+        Handle h = channels.get(p);
+        if (h == null) {
+            h = new Handle(FileChannel.open(p, StandardOpenOption.READ));
+            channels.put(p, h);
+        }
+        h.refs++;
+        return h;
+    }
+
+    /**
+     * Drops p from the cache, used when p is about to be deleted.
+     */
+    synchronized void invalidate(Path p) {
+        Handle h = channels.remove(p);
+        if (h != null) {
+            h.evict();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        List<Handle> handles = new ArrayList<>(channels.values());
+        channels.clear();
+        handles.forEach(Handle::evict);
+    }
+
+    private synchronized void release(Handle h) {
+        if (--h.refs == 0 && h.evicted) {
+            h.closeChannel();
+        }
+    }
+
+    class Handle implements Closeable {
+        final FileChannel channel;
+        private int refs; // guarded by ChannelCache.this
+        private boolean evicted;
+        private MappedByteBuffer map;
+
+        private Handle(FileChannel channel) {
+            this.channel = requireNonNull(channel);
+        }
+
+        /**
+         * Maps the whole file read only, and maps it again if the mapping
+         * doesn't cover the first minSize bytes so the file may still grow.
+         * What was written must not change since the mapping is shared by
+         * everyone that acquires this handle. The mapping is dropped
+         * together with the handle and is unmapped once no slice of it is
+         * reachable anymore.
+         *
+         * Returns null if the file is too big for a ByteBuffer or smaller
+         * than minSize.
+         */
+        ByteBuffer map(long minSize) throws IOException {
+            synchronized (ChannelCache.this) {
+                if (map == null || map.capacity() < minSize) {
+                    long size = channel.size();
+                    if (size > Integer.MAX_VALUE || size < minSize) {
+                        return null;
+                    }
+                    map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+                return map.duplicate();
+            }
+        }
+
+        private void evict() {
+            evicted = true;
+            map = null;
+            if (refs == 0) {
+                closeChannel();
+            }
+        }
+
+        private void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("unable to close channel", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+}
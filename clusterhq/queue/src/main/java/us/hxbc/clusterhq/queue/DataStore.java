@@ -1,20 +1,37 @@
 package us.hxbc.clusterhq.queue;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.StreamCorruptedException;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.util.OptionalLong;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import static java.util.Objects.requireNonNull;
 
@@ -35,47 +52,172 @@ import static java.util.Objects.requireNonNull;
  * 5 bytes, it will still be in a file called "0". The next message will get
  * LSN 8 so that it will begin at offset 0 in the file "2".
  *
+ * Each record is a header of the payload length (64 bit) and the CRC32C of
+ * the length and the payload (32 bit), followed by the payload. Covering
+ * the length means a zeroed header doesn't pass as an empty message. Only
+ * the tail chunk can have a torn write, so at startup the tail is scanned
+ * and truncated after the last record that checks out. Recovery never
+ * reads more than one chunk no matter how long the log is, unless the
+ * tail only has part of a batch.
+ *
+ * The version of the record format is kept in a file called format next
+ * to the chunks. Chunks from before records had checksums have a header of
+ * just the length. They are read as they are until GC deletes them, and
+ * the format file also has the LSN the checksummed records start at, the
+ * base of the chunk after the old ones. Chunks in any other format are
+ * refused rather than recovered, all of their records would look torn.
+ *
+ * The messages of a batch are all or nothing. Every record of a batch
+ * but the last has MORE set in its length, and recovery truncates a batch
+ * that didn't make it to its last record. Such a batch may have started
+ * in a previous chunk. If the tail ends up empty and the chunk before it
+ * ends with MORE, the tail is deleted and that chunk is recovered as
+ * well. It must otherwise be intact, since it was synced before the log
+ * rolled over.
+ *
+ * Messages only become visible to get() once they are as durable as their
+ * publisher asked, see Durability. Publishers are group committed, see
+ * post(). Whatever durability was asked for, a chunk is synced before the
+ * log rolls over to the next one, so recovery still only has to look at
+ * the tail.
+ *
+ * Chunks other than the tail never change, so with readCache.mmap they are
+ * mapped on the first read and messages are handed out as slices of the
+ * mapping. Durable messages don't change either, so big messages are mapped
+ * by themselves even in the tail and can be sent without copying them.
+ *
+ * With chunk.preallocate the next chunk is written out with zeros in the
+ * background, so rolling over is a rename and appends to it don't change
+ * the file size, which lets them be synced with fdatasync. Recovery stops
+ * at the zeros like at any other invalid record. A chunk other than the
+ * tail is never padded since its last record always reaches the next
+ * chunk's base.
+ *
+ * The chunks and their durable sizes are kept in memory, so reads and GC
+ * don't have to go to the file system for metadata. The directory is only
+ * listed once at startup.
+ *
  * Garbage collection works by simply deleting chunks that are no longer in
- * need. If a chunk may still be needed, we try to be conservative and not
- * touch it. Behavior is undefined if you request a LSN that is already GC'ed.
+ * need, or that are beyond the topic's retention limits. If a chunk may
+ * still be needed, we try to be conservative and not touch it. Behavior is
+ * undefined if you request a LSN that is already GC'ed.
  */
 public class DataStore {
+    static final int HEADER_SIZE = 12;
+    static final int OLD_HEADER_SIZE = 8; // format version 1
+    // set in the length of a record that's followed by more of its batch
+    static final long MORE = 1L << 62;
+    static final String PREALLOCATED = "prealloc";
+    // has the version of the record format, chunks from before records
+    // had checksums were version 1
+    static final String FORMAT = "format";
+    static final int FORMAT_VERSION = 2;
     private Logger logger = LoggerFactory.getLogger(getClass());
     private Path dir;
     private final long CHUNK_SIZE;
+    private final TopicConfig config;
     private long nextLSN;
+    private volatile long committedLSN;
+    private long formatLSN; // chunks below are in format version 1
+    private Batch pending;
+    private boolean flushing;
+    private long flushCount;
+    private FileChannel tail;
+    private long tailBaseLSN;
+    private long tailSize;
+    private long tailAllocated; // how much of the tail was preallocated
+    private boolean unsynced; // the tail has writes that weren't synced
+    private boolean syncRequested; // guarded by this
+    private Executor preallocator;
+    private Runnable syncer; // guarded by this
+    private Path preallocated; // guarded by this
+    private boolean preallocating; // guarded by this
+    private final ChannelCache readChannels;
+    private final TailCache tailCache; // null if disabled
+    private final TopicMetrics metrics = new TopicMetrics();
+    // base LSN -> every chunk, only covers durable data
+    private final ConcurrentNavigableMap<Long, Chunk> chunks = new ConcurrentSkipListMap<>();
 
     DataStore(Path dir, long chunkSize) throws IOException {
         this(dir, chunkSize, 0);
     }
 
     DataStore(Path dir, long chunkSize, long baseLSN) throws IOException {
+        this(dir, chunkSize, baseLSN, TopicConfig.DEFAULT);
+    }
+
+    DataStore(Path dir, long chunkSize, long baseLSN, TopicConfig config) throws IOException {
         this.dir = requireNonNull(dir);
         if ((chunkSize & (chunkSize - 1)) != 0) {
             throw new IllegalArgumentException(chunkSize + " is not power of 2");
         }
         this.CHUNK_SIZE = chunkSize;
+        this.config = requireNonNull(config);
+        this.readChannels = new ChannelCache(config.readChannels);
+        // big messages are better off mapped than copied out of the cache
+        this.tailCache = config.tailCacheBytes == 0 ? null : new TailCache(config.tailCacheBytes,
+                config.mapMessageBytes == 0 ? Long.MAX_VALUE : config.mapMessageBytes);
         this.nextLSN = baseLSN;
         init();
+        committedLSN = nextLSN;
     }
 
     private void init() throws IOException {
-        OptionalLong lsn = Files.list(dir)
-                .map(p -> p.getFileName().toString())
-                .mapToLong(s -> Long.parseLong(s, 16))
-                .max();
-        if (lsn.isPresent()) {
-            Path p = dir.resolve(Long.toHexString(lsn.getAsLong()));
-            long size = Files.size(p);
-            long foundLSN = lsn.getAsLong() + size;
-            if (foundLSN < nextLSN) {
-                throw new StreamCorruptedException(foundLSN + " < " + nextLSN);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                String name = p.getFileName().toString();
+                if (name.equals(PREALLOCATED) || name.equals(FORMAT + ".tmp")) {
+                    Files.delete(p);
+                    continue;
+                }
+                if (name.equals(FORMAT)) {
+                    continue;
+                }
+                chunks.put(Long.parseLong(name, 16),
+                        new Chunk(Files.size(p), Files.getLastModifiedTime(p).toMillis()));
             }
-            if (size > CHUNK_SIZE) {
+        }
+        checkFormat();
+        if (!chunks.isEmpty() && chunks.lastKey() >= formatLSN) {
+            Map.Entry<Long, Chunk> last = chunks.lastEntry();
+            long size = recover(last.getKey(), last.getValue().size);
+            Map.Entry<Long, Chunk> prev;
+            while (size == 0 && (prev = chunks.lowerEntry(last.getKey())) != null && prev.getKey() >= formatLSN) {
+                // an unfinished batch may have started in the previous
+                // chunk, which then ends with MORE. That chunk was synced
+                // before the rollover so anything else wrong with it isn't
+                // a torn write.
+                Scan scan = scan(prev.getKey(), prev.getValue().size);
+                if (!scan.sealed) {
+                    throw new StreamCorruptedException(getChunkPath(prev.getKey()) + " is corrupted at " +
+                            scan.intact);
+                }
+                if (!scan.more) {
+                    break;
+                }
+                Files.delete(getChunkPath(last.getKey()));
+                chunks.remove(last.getKey());
+                last = prev;
+                // only goes on if the batch started even earlier
+                size = truncate(prev.getKey(), prev.getValue().size, scan);
+            }
+            chunks.put(last.getKey(), new Chunk(size, last.getValue().modified));
+            long foundLSN = last.getKey() + size;
+            if (getBaseLSN(foundLSN) != last.getKey()) {
+                // same rounding as getLSNAfter()
                 foundLSN = getBaseLSN(foundLSN) + CHUNK_SIZE;
             }
+            if (foundLSN < nextLSN) {
+                // what wasn't synced can be lost, but checkpoints of reading
+                // it may not have been, the queue moves those back
+                logger.warn("{} ends at {} before {}, unsynced messages were lost", dir, foundLSN, nextLSN);
+            }
             nextLSN = foundLSN;
+        } else if (!chunks.isEmpty()) {
+            // only old chunks, they were checked when they were written
+            nextLSN = formatLSN;
         } else {
+            nextLSN = Math.max(nextLSN, formatLSN);
             if (nextLSN % CHUNK_SIZE != 0) {
                 nextLSN = getBaseLSN(nextLSN) + CHUNK_SIZE;
             }
@@ -84,6 +226,144 @@ public class DataStore {
         logger.info("discovered LSN {}", nextLSN);
     }
 
+    /**
+     * Refuses to go on if the chunks are in another format than ours, since
+     * recovery would take their records for torn writes and truncate them.
+     * The format file came after checksums did, so chunks without one are
+     * ours if the first record that isn't zeros has a valid checksum, and
+     * otherwise from before checksums.
+     */
+    private void checkFormat() throws IOException {
+        Path p = dir.resolve(FORMAT);
+        if (Files.exists(p)) {
+            String[] format = new String(Files.readAllBytes(p), StandardCharsets.UTF_8).trim().split(" ");
+            if (!format[0].equals(Integer.toString(FORMAT_VERSION))) {
+                throw new IllegalStateException(dir + " is in format " + format[0] + ", not " + FORMAT_VERSION);
+            }
+            if (format.length > 1) {
+                formatLSN = Long.parseLong(format[1]);
+            }
+            return;
+        }
+
+        for (Map.Entry<Long, Chunk> e : chunks.entrySet()) {
+            if (e.getValue().size < HEADER_SIZE) {
+                continue;
+            }
+            try (FileChannel in = FileChannel.open(getChunkPath(e.getKey()), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(in, header, 0);
+                header.flip();
+                long length = header.getLong();
+                int crc = header.getInt();
+                if (length == 0 && crc == 0) {
+                    // preallocated
+                    continue;
+                }
+                if (length < 0 || (length & ~MORE) > e.getValue().size - HEADER_SIZE ||
+                        !checksum(in, 0, length, crc)) {
+                    // new records start in a chunk of their own, rounded up
+                    // like getLSNAfter() in case the last one reached the next
+                    Map.Entry<Long, Chunk> last = chunks.lastEntry();
+                    formatLSN = getBaseLSN(last.getKey() + last.getValue().size) + CHUNK_SIZE;
+                    logger.warn("{} has chunks from before records had checksums, checksummed records start at {}",
+                            dir, formatLSN);
+                }
+                break;
+            }
+        }
+
+        String format = formatLSN == 0 ? Integer.toString(FORMAT_VERSION) : FORMAT_VERSION + " " + formatLSN;
+        Path tmp = dir.resolve(FORMAT + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.write(ByteBuffer.wrap((format + "\n").getBytes(StandardCharsets.UTF_8)));
+            out.force(true);
+        }
+        Files.move(tmp, p, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns true if crc is the checksum of length and the payload of the
+     * record at position.
+     */
+    private static boolean checksum(FileChannel in, long position, long length, int crc) throws IOException {
+        Hasher hasher = Hashing.crc32c().newHasher().putLong(length);
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        position += HEADER_SIZE;
+        for (long remaining = length & ~MORE; remaining > 0; ) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), remaining));
+            readFully(in, buf, position);
+            hasher.putBytes(buf.array(), 0, buf.limit());
+            position += buf.limit();
+            remaining -= buf.limit();
+        }
+        return hasher.hash().asInt() == crc;
+    }
+
+    /**
+     * Truncates the chunk at baseLSN after the last record that's intact
+     * and ends a batch, returns the resulting size.
+     */
+    private long recover(long baseLSN, long size) throws IOException {
+        return truncate(baseLSN, size, scan(baseLSN, size));
+    }
+
+    private long truncate(long baseLSN, long size, Scan scan) throws IOException {
+        Path p = getChunkPath(baseLSN);
+        if (scan.valid != scan.intact) {
+            logger.warn("dropping the unfinished batch at {} in {}", scan.valid, p);
+        }
+        if (scan.valid != size) {
+            logger.warn("truncating {} from {} to {} bytes", p, size, scan.valid);
+            try (FileChannel out = FileChannel.open(p, StandardOpenOption.WRITE)) {
+                out.truncate(scan.valid);
+                out.force(true);
+            }
+        }
+        return scan.valid;
+    }
+
+    /**
+     * Reads the records of the chunk at baseLSN up to the first one that
+     * isn't intact.
+     */
+    private Scan scan(long baseLSN, long size) throws IOException {
+        Scan scan = new Scan();
+        try (FileChannel in = FileChannel.open(getChunkPath(baseLSN), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (scan.intact + HEADER_SIZE <= size) {
+                header.clear();
+                readFully(in, header, scan.intact);
+                header.flip();
+                long length = header.getLong();
+                int crc = header.getInt();
+                long messageSize = length & ~MORE;
+                if (length < 0 || messageSize > size - scan.intact - HEADER_SIZE) {
+                    break;
+                }
+
+                if (!checksum(in, scan.intact, length, crc)) {
+                    break;
+                }
+
+                long lsn = baseLSN + scan.intact;
+                scan.intact += HEADER_SIZE + messageSize;
+                scan.more = (length & MORE) != 0;
+                if (!scan.more) {
+                    scan.valid = scan.intact;
+                }
+                if (getBaseLSN(getLSNAfter(lsn, messageSize)) != baseLSN) {
+                    // the next record went to the next chunk
+                    scan.sealed = true;
+                    break;
+                }
+            }
+        }
+        return scan;
+    }
+
     long getBaseLSN(long lsn) {
         return lsn & ~(CHUNK_SIZE - 1);
     }
@@ -97,151 +377,894 @@ public class DataStore {
         return nextLSN;
     }
 
-    public synchronized long post(InputStream data) throws IOException {
-        long baseLSN = getBaseLSN(nextLSN);
-        Path chunk = getChunkPath(baseLSN);
+    /**
+     * Returns the LSN after the last message that was written out. Unlike
+     * getNextLSN() it doesn't cover batches that are still to be written,
+     * whose LSNs go to later messages if their flush fails.
+     */
+    public long getCommittedLSN() {
+        return committedLSN;
+    }
 
-        logger.debug("Writing to {}", chunk);
-        long origSize = -1;
-        FileChannel out = null;
+    /**
+     * Appends a message and returns the LSN after it. The message is as
+     * durable as the topic's durability by the time this returns.
+     *
+     * Publishers that arrive while a flush is in progress are queued up in
+     * the same batch, and the batch is written out with one fsync per chunk
+     * once the previous flush is done and the batch either waited
+     * maxBatchDelayMs or grew to maxBatchBytes.
+     */
+    public long post(InputStream data) throws IOException {
+        byte[] payload = ByteStreams.toByteArray(data);
+        return getLSNAfter(post(Collections.singletonList(payload))[0], payload.length);
+    }
+
+    /**
+     * Appends payloads as consecutive messages that go out with the same
+     * flush, returns the LSN of each. Either all of them become visible or,
+     * if this throws, none, and the same goes after a crash.
+     */
+    public long[] post(List<byte[]> payloads) throws IOException {
+        return post(payloads, config.durability);
+    }
+
+    /**
+     * Like post(payloads) but returns once the messages are as durable as
+     * durability. The batch they are flushed with is synced if anyone in
+     * it asked for that.
+     */
+    public long[] post(List<byte[]> payloads, Durability durability) throws IOException {
+        if (payloads.isEmpty()) {
+            return new long[0];
+        }
+        long start = System.nanoTime();
+        long[] lsns = append(payloads, requireNonNull(durability));
+        metrics.publishLatency.record(System.nanoTime() - start);
+        long bytes = 0;
+        for (byte[] payload : payloads) {
+            bytes += payload.length;
+        }
+        metrics.publishedMessages.add(payloads.size());
+        metrics.publishedBytes.add(bytes);
+        return lsns;
+    }
+
+    private long[] append(List<byte[]> payloads, Durability durability) throws IOException {
+        Batch batch;
+        long[] lsns = new long[payloads.size()];
+        synchronized (this) {
+            if (pending == null) {
+                pending = new Batch(nextLSN);
+            }
+            batch = pending;
+            if (durability.compareTo(batch.durability) < 0) {
+                batch.durability = durability;
+            }
+            for (int i = 0; i < lsns.length; i++) {
+                byte[] payload = payloads.get(i);
+                lsns[i] = nextLSN;
+                batch.add(nextLSN, payload, i < lsns.length - 1);
+                nextLSN = getLSNAfter(nextLSN, payload.length);
+            }
+            batch.endLSN = nextLSN;
+            if (batch.bytes >= config.maxBatchBytes) {
+                notifyAll();
+            }
+
+            if (!awaitFlush(batch)) {
+                return lsns;
+            }
+        }
+
+        // an interrupt would close the tail channel under the flush
+        boolean interrupted = Thread.interrupted();
         try {
-            out = FileChannel.open(chunk, StandardOpenOption.CREATE,
-                    StandardOpenOption.WRITE);
-            origSize = out.size();
-            out.position(origSize);
-            int nread;
-            long total = 0;
-            ByteBuffer buf = ByteBuffer.allocate(32 * 1024);
-            buf.mark();
-            buf.putLong(0); // placeholder for size of this message
-            buf.limit(buf.position());
-            buf.reset();
-            int nwritten = out.write(buf);
-            if (nwritten != 8) {
-                throw new IllegalArgumentException(nwritten + " != 8");
-            }
-            buf.reset();
-            buf.limit(buf.capacity());
-            while ((nread = data.read(buf.array())) > 0) {
-                buf.limit(nread);
-                nwritten = out.write(buf);
-                if (nwritten != nread) {
-                    throw new IllegalArgumentException(nwritten + " != " + nread);
-                }
-                buf.reset();
-                total += nread;
-            }
-            buf.reset();
-            buf.limit(buf.capacity());
-            buf.putLong(total);
-            buf.limit(buf.position());
-            buf.reset();
-            nwritten = out.write(buf, origSize); // write the real size
-            if (nwritten != 8) {
-                throw new IllegalArgumentException(nwritten + " != 8");
+            flush(batch);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
-            out.force(true);
-            synchronized (this) {
-                nextLSN += total + 8;
-                if (getBaseLSN(nextLSN) != baseLSN) {
-                    // we exceeded this chunk, round this up to the next chunk
-                    nextLSN = getBaseLSN(nextLSN) + CHUNK_SIZE;
+        }
+        return lsns;
+    }
+
+    long getLSNAfter(long lsn, long messageSize) {
+        long lsnAfter = lsn + HEADER_SIZE + messageSize;
+        if (getBaseLSN(lsnAfter) != getBaseLSN(lsn)) {
+            // we exceeded this chunk, round this up to the next chunk
+            lsnAfter = getBaseLSN(lsnAfter) + CHUNK_SIZE;
+        }
+        return lsnAfter;
+    }
+
+    /**
+     * Waits for batch to be flushed by someone else. Returns true if the
+     * caller is the one that should flush it.
+     *
+     * The payloads are in the batch already, so an interrupt doesn't give
+     * up on it. It only cuts the delay short, the caller still gets the
+     * outcome and keeps its interrupt status.
+     */
+    private boolean awaitFlush(Batch batch) throws IOException {
+        long deadline = batch.created + TimeUnit.MILLISECONDS.toNanos(config.maxBatchDelayMs);
+        boolean interrupted = false;
+        try {
+            while (!batch.done) {
+                try {
+                    if (pending == batch && !flushing) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0 || batch.bytes >= config.maxBatchBytes || interrupted) {
+                            pending = null;
+                            flushing = true;
+                            return true;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } else {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
                 }
             }
-        } catch (IOException e) {
-            // truncate the file back to the original size
-            if (out != null && origSize != -1) {
-                out.truncate(origSize);
-                out.force(true);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (batch.error != null) {
+            throw new IOException("batch at " + batch.startLSN + " failed", batch.error);
+        }
+        return false;
+    }
+
+    private void flush(Batch batch) throws IOException {
+        Exception error = null;
+        try {
+            write(batch);
+        } catch (IOException | RuntimeException e) {
+            error = e;
+        }
+
+        Runnable requestSync = null;
+        synchronized (this) {
+            flushing = false;
+            if (error == null) {
+                committedLSN = batch.endLSN;
+                if (batch.durability == Durability.BATCHED && !syncRequested) {
+                    syncRequested = true;
+                    requestSync = syncer;
+                }
+            } else {
+                // whatever queued up behind this batch was assigned LSNs
+                // after it, so it has to go as well
+                nextLSN = batch.startLSN;
+                if (pending != null) {
+                    pending.error = error;
+                    pending.done = true;
+                    pending = null;
+                }
+            }
+            batch.error = error;
+            batch.done = true;
+            flushCount++;
+            notifyAll();
+        }
+        if (requestSync != null) {
+            requestSync.run();
+        }
+
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (error != null) {
+            throw (RuntimeException) error;
+        }
+    }
+
+    /**
+     * Writes out batch. Only one flush is in progress at a time so this
+     * owns the tail channel.
+     */
+    private void write(Batch batch) throws IOException {
+        List<FileChannel> rolledOver = new ArrayList<>();
+        List<FileChannel> written = new ArrayList<>();
+        List<Long> writtenLSNs = new ArrayList<>();
+        List<Long> origSizes = new ArrayList<>();
+        try {
+            int i = 0;
+            while (i < batch.lsns.size()) {
+                // records are contiguous until they roll over to the next chunk
+                long baseLSN = getBaseLSN(batch.lsns.get(i));
+                List<ByteBuffer> bufs = new ArrayList<>();
+                long position = batch.lsns.get(i) - baseLSN;
+                for (; i < batch.lsns.size() && getBaseLSN(batch.lsns.get(i)) == baseLSN; i++) {
+                    byte[] payload = batch.payloads.get(i);
+                    long length = batch.more.get(i) ? payload.length | MORE : payload.length;
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putLong(length);
+                    header.putInt(Hashing.crc32c().newHasher().putLong(length).putBytes(payload)
+                            .hash().asInt());
+                    header.flip();
+                    bufs.add(header);
+                    bufs.add(ByteBuffer.wrap(payload));
+                }
+
+                if (tail == null || tailBaseLSN != baseLSN) {
+                    if (tail != null) {
+                        if (unsynced) {
+                            force();
+                        }
+                        rolledOver.add(tail);
+                        tail = null;
+                    }
+                    openTail(baseLSN);
+                }
+                if (tailSize != position) {
+                    throw new StreamCorruptedException(String.format("%s is %s bytes but expected %s",
+                            getChunkPath(baseLSN), tailSize, position));
+                }
+
+                written.add(tail);
+                writtenLSNs.add(baseLSN);
+                origSizes.add(tailSize);
+                ByteBuffer[] srcs = bufs.toArray(new ByteBuffer[bufs.size()]);
+                long remaining = bufs.stream().mapToLong(ByteBuffer::remaining).sum();
+                tail.position(position);
+                while (remaining > 0) {
+                    long n = tail.write(srcs);
+                    remaining -= n;
+                    tailSize += n;
+                }
+                if (batch.durability == Durability.ALWAYS) {
+                    force();
+                } else {
+                    unsynced = true;
+                }
+                chunks.put(baseLSN, new Chunk(tailSize, System.currentTimeMillis()));
+            }
+            if (tailCache != null) {
+                // readers don't look before committedLSN moves past these
+                tailCache.put(batch.lsns, batch.payloads);
+            }
+        } catch (IOException | RuntimeException e) {
+            // truncate the files back to the original size
+            for (int i = 0; i < origSizes.size(); i++) {
+                chunks.put(writtenLSNs.get(i), new Chunk(origSizes.get(i), System.currentTimeMillis()));
+                try {
+                    written.get(i).truncate(origSizes.get(i));
+                    written.get(i).force(true);
+                } catch (IOException e2) {
+                    e.addSuppressed(e2);
+                }
+            }
+            if (tail != null) {
+                tail.close();
+                tail = null;
+                unsynced = false;
             }
             throw e;
         } finally {
-            if (out != null) {
+            for (FileChannel out : rolledOver) {
                 out.close();
             }
         }
+    }
 
-        return nextLSN;
+    private void force() throws IOException {
+        // within the preallocated part only the data has to be synced
+        long start = System.nanoTime();
+        tail.force(tailSize > tailAllocated);
+        metrics.fsyncLatency.record(System.nanoTime() - start);
+        unsynced = false;
+    }
+
+    /**
+     * Syncs what was written with BATCHED durability since the last time.
+     * It takes the place of a flush so it can use the tail channel.
+     */
+    void sync() throws IOException {
+        synchronized (this) {
+            if (!syncRequested) {
+                return;
+            }
+            try {
+                while (flushing) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            syncRequested = false;
+            flushing = true;
+        }
+
+        boolean synced = false;
+        Runnable requestSync = null;
+        try {
+            if (tail != null && unsynced) {
+                force();
+            }
+            synced = true;
+        } finally {
+            synchronized (this) {
+                flushing = false;
+                if (!synced) {
+                    syncRequested = true;
+                    requestSync = syncer;
+                }
+                notifyAll();
+            }
+            // try again later
+            if (requestSync != null) {
+                requestSync.run();
+            }
+        }
+    }
+
+    /**
+     * Has the first BATCHED flush after each sync() run syncer, which should
+     * arrange for sync() to be called within durability.intervalMs.
+     */
+    void startSyncing(Runnable syncer) {
+        boolean requested;
+        synchronized (this) {
+            this.syncer = requireNonNull(syncer);
+            requested = syncRequested;
+        }
+        if (requested) {
+            syncer.run();
+        }
+    }
+
+    private void openTail(long baseLSN) throws IOException {
+        Path chunk = getChunkPath(baseLSN);
+        logger.debug("Rolling over to {}", chunk);
+        Path p;
+        synchronized (this) {
+            p = preallocated;
+            preallocated = null;
+        }
+        if (p != null && !chunks.containsKey(baseLSN)) {
+            Files.move(p, chunk, StandardCopyOption.ATOMIC_MOVE);
+            tail = FileChannel.open(chunk, StandardOpenOption.WRITE);
+            tailAllocated = tail.size();
+            tailSize = 0;
+        } else {
+            if (p != null) {
+                Files.delete(p);
+            }
+            tail = FileChannel.open(chunk, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            tailSize = tail.size();
+            tailAllocated = 0;
+        }
+        tailBaseLSN = baseLSN;
+        preallocate();
+    }
+
+    /**
+     * Turns on chunk.preallocate, preallocation runs on executor.
+     */
+    void startPreallocating(Executor executor) {
+        if (config.preallocate) {
+            synchronized (this) {
+                preallocator = requireNonNull(executor);
+            }
+            preallocate();
+        }
+    }
+
+    private void preallocate() {
+        Executor executor;
+        synchronized (this) {
+            if (preallocator == null || preallocated != null || preallocating) {
+                return;
+            }
+            preallocating = true;
+            executor = preallocator;
+        }
+
+        executor.execute(() -> {
+            Path p = dir.resolve(PREALLOCATED);
+            boolean done = false;
+            try (FileChannel out = FileChannel.open(p, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, 64 * 1024));
+                for (long position = 0; position < CHUNK_SIZE; ) {
+                    zeros.clear();
+                    zeros.limit((int) Math.min(zeros.capacity(), CHUNK_SIZE - position));
+                    position += out.write(zeros, position);
+                }
+                out.force(true);
+                done = true;
+            } catch (IOException e) {
+                logger.warn("unable to preallocate " + p, e);
+            } finally {
+                synchronized (this) {
+                    preallocating = false;
+                    if (done) {
+                        preallocated = p;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the tail channel and the cached read channels. Messages that
+     * were already handed out stay readable until they are closed.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            while (flushing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            preallocator = null;
+            syncer = null;
+            if (tail != null) {
+                if (unsynced) {
+                    force();
+                }
+                if (tailAllocated > tailSize) {
+                    // recovery would do this, but a clean stop shouldn't
+                    // need it
+                    tail.truncate(tailSize);
+                }
+                tail.close();
+                tail = null;
+            }
+        }
+        readChannels.close();
+    }
+
+    TopicMetrics getMetrics() {
+        return metrics;
+    }
+
+    int getChunkCount() {
+        return chunks.size();
+    }
+
+    TailCache getTailCache() {
+        return tailCache;
+    }
+
+    @VisibleForTesting
+    synchronized long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * Batch is a group of messages that will be made durable by the same
+     * flush.
+     */
+    private static class Batch {
+        final long created = System.nanoTime();
+        final long startLSN;
+        final List<Long> lsns = new ArrayList<>();
+        final List<byte[]> payloads = new ArrayList<>();
+        final BitSet more = new BitSet(); // records followed by more of their batch
+        Durability durability = Durability.OS; // the strongest anyone asked for
+        long endLSN;
+        long bytes;
+        boolean done;
+        Exception error;
+
+        Batch(long startLSN) {
+            this.startLSN = startLSN;
+            this.endLSN = startLSN;
+        }
+
+        void add(long lsn, byte[] payload, boolean more) {
+            this.more.set(lsns.size(), more);
+            lsns.add(lsn);
+            payloads.add(payload);
+            bytes += HEADER_SIZE + payload.length;
+        }
+    }
+
+    private static class Scan {
+        long valid; // after the last complete batch
+        long intact; // after the last intact record
+        boolean more; // the last intact record has MORE set
+        boolean sealed; // the last intact record reaches the next chunk
+    }
+
+    private static class Chunk {
+        final long size;
+        final long modified;
+
+        Chunk(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
     }
 
     public static class Message {
         public final InputStream in;
+        /**
+         * The payload if it's available in memory, in which case in reads
+         * from it. This is a read only view and may be backed by a mapping
+         * of the chunk.
+         */
+        public final ByteBuffer data;
+        public final long size;
         public final long nextLSN;
+        /**
+         * How many LSNs the subscriber skipped right before this message
+         * because retention deleted them.
+         */
+        public final long skipped;
 
         Message(InputStream in, long nextLSN) {
+            this(in, 0, nextLSN);
+        }
+
+        Message(InputStream in, long size, long nextLSN) {
             this.in = in;
+            this.data = null;
+            this.size = size;
+            this.nextLSN = nextLSN;
+            this.skipped = 0;
+        }
+
+        Message(ByteBuffer data, long nextLSN) {
+            this.data = data.asReadOnlyBuffer();
+            this.in = new ByteBufferInputStream(this.data.duplicate());
+            this.size = data.remaining();
             this.nextLSN = nextLSN;
+            this.skipped = 0;
+        }
+
+        private Message(Message m, long skipped) {
+            this.in = m.in;
+            this.data = m.data;
+            this.size = m.size;
+            this.nextLSN = m.nextLSN;
+            this.skipped = skipped;
+        }
+
+        Message withSkipped(long skipped) {
+            return skipped == 0 ? this : new Message(this, skipped);
         }
     }
 
-    public void gc(long needLSN) {
-        long baseLSN = getBaseLSN(needLSN);
-        try {
-            Files.list(dir).forEach(p -> {
-                String name = p.getFileName().toString();
-                long lsn = Long.parseLong(name, 16);
-                if (lsn < baseLSN) {
-                    try {
-                        logger.info("gc deleting {}", p);
-                        Files.delete(p);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Deletes the chunks that are entirely before needLSN, returns how many
+     * were deleted.
+     */
+    public int gc(long needLSN) {
+        int deleted = 0;
+        for (long lsn : chunks.headMap(getBaseLSN(needLSN)).keySet()) {
+            Path p = getChunkPath(lsn);
+            try {
+                logger.info("gc deleting {}", p);
+                // readers check the registry first, drop it before the file
+                Chunk c = chunks.remove(lsn);
+                readChannels.invalidate(p);
+                Files.deleteIfExists(p);
+                deleted++;
+                metrics.gcChunks.increment();
+                metrics.gcBytes.add(c == null ? 0 : c.size);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
+        return deleted;
+    }
+
+    /**
+     * Returns the LSN before which chunks have to go to keep the log within
+     * maxBytes and to drop chunks last written more than maxAgeMs ago, 0
+     * means no limit. The last chunk is always kept.
+     */
+    long getRetentionLSN(long maxBytes, long maxAgeMs) {
+        Map.Entry<Long, Chunk> last = chunks.lastEntry();
+        if (last == null) {
+            return 0;
+        }
+        long total = 0;
+        for (Chunk c : chunks.values()) {
+            total += c.size;
+        }
+        long oldest = System.currentTimeMillis() - maxAgeMs;
+        long lsn = 0;
+        for (Map.Entry<Long, Chunk> e : chunks.entrySet()) {
+            lsn = e.getKey();
+            boolean tooBig = maxBytes != 0 && total > maxBytes;
+            boolean tooOld = maxAgeMs != 0 && e.getValue().modified < oldest;
+            if ((!tooBig && !tooOld) || lsn == last.getKey()) {
+                break;
+            }
+            total -= e.getValue().size;
+        }
+        return lsn;
+    }
+
+    /**
+     * Returns the LSN of the oldest message that's still around.
+     */
+    long getFirstLSN() {
+        Map.Entry<Long, Chunk> first = chunks.firstEntry();
+        return first == null ? committedLSN : first.getKey();
+    }
+
+    @VisibleForTesting
+    SortedMap<Long, Long> getChunks() {
+        SortedMap<Long, Long> sizes = new TreeMap<>();
+        chunks.forEach((lsn, c) -> sizes.put(lsn, c.size));
+        return sizes;
     }
 
     public Message get(long lsn) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return read(lsn);
+        } finally {
+            metrics.readLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    private Message read(long lsn) throws IOException {
         long baseLSN = getBaseLSN(lsn);
         Path chunk = getChunkPath(baseLSN);
         long relativeLSN = lsn - baseLSN;
-        long chunkSize;
-        if (Files.notExists(chunk) || (chunkSize = Files.size(chunk)) < relativeLSN) {
-            return new Message(null, nextLSN);
+        if (lsn >= committedLSN) {
+            return noMessage();
+        }
+        if (baseLSN < formatLSN) {
+            return readOld(lsn);
+        }
+        Chunk c = chunks.get(baseLSN);
+        if (c == null || c.size <= relativeLSN) {
+            return noMessage();
         }
+        long chunkSize = c.size;
 
-        FileChannel in = null;
+        if (tailCache != null) {
+            byte[] payload = tailCache.get(lsn);
+            if (payload != null) {
+                return new Message(ByteBuffer.wrap(payload), getLSNAfter(lsn, payload.length));
+            }
+        }
+
+        ChannelCache.Handle in;
         try {
-            in = FileChannel.open(chunk, StandardOpenOption.READ);
-            logger.debug("seeking to {}/{} in {}", relativeLSN, baseLSN, in.size());
-            if (in.size() <= relativeLSN) {
+            in = readChannels.acquire(chunk);
+        } catch (NoSuchFileException e) {
+            return noMessage();
+        }
+
+        if (config.mmapReads && baseLSN < getBaseLSN(committedLSN)) {
+            // sealed chunks never change so they can be mapped once
+            ByteBuffer map;
+            try {
+                map = in.map(chunkSize);
+            } catch (IOException | RuntimeException e) {
                 in.close();
-                return new Message(null, nextLSN);
+                throw e;
             }
-            in.position(relativeLSN);
-            ByteBuffer buf = ByteBuffer.allocate(8);
-            buf.mark();
-            in.read(buf);
-            buf.reset();
-            long messageSize = buf.getLong();
-            logger.debug("message is {} bytes", messageSize);
-            if (chunkSize < relativeLSN + 8 + messageSize) {
+            if (map != null) {
                 in.close();
+                return getMapped(map, lsn, relativeLSN);
+            }
+        }
+
+        try {
+            logger.debug("seeking to {}/{} in {}", relativeLSN, baseLSN, chunkSize);
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(in.channel, buf, relativeLSN);
+            buf.flip();
+            long messageSize = buf.getLong() & ~MORE;
+            logger.debug("message is {} bytes", messageSize);
+            if (chunkSize < relativeLSN + HEADER_SIZE + messageSize) {
                 throw new StreamCorruptedException(
                         String.format("%s/%s is %s bytes but chunk is %s bytes", relativeLSN, lsn, messageSize, chunkSize));
             }
 
-            long lsnAfter = lsn + 8 + messageSize;
-            if (getBaseLSN(lsnAfter) != baseLSN) {
-                // we exceeded this chunk, round this up to the next chunk
-                lsnAfter = getBaseLSN(lsnAfter) + CHUNK_SIZE;
-            }
-            return new Message(ByteStreams.limit(Channels.newInputStream(in), messageSize), lsnAfter);
-        } catch (BufferUnderflowException e) {
-            throw new IOException(e);
-        } catch (IOException e) {
-            if (in != null) {
-                in.close();
+            long lsnAfter = getLSNAfter(lsn, messageSize);
+            if (config.mapMessageBytes != 0 && messageSize >= config.mapMessageBytes) {
+                // the chunk is mapped once for all of its big messages, the
+                // tail is mapped again only when it outgrew the mapping
+                ByteBuffer map = in.map(relativeLSN + HEADER_SIZE + messageSize);
+                if (map != null) {
+                    in.close();
+                    return new Message(slice(map, relativeLSN + HEADER_SIZE, messageSize), lsnAfter);
+                }
             }
+            return new Message(new ChannelInputStream(in, relativeLSN + HEADER_SIZE, messageSize), messageSize, lsnAfter);
+        } catch (IOException | RuntimeException e) {
+            in.close();
             throw e;
-        } catch (RuntimeException e) {
-            if (in != null) {
-                in.close();
+        }
+    }
+
+    /**
+     * Reads a record in format version 1. Those weren't rounded up to the
+     * next chunk after the last one, so the LSN after it leads on to the
+     * first checksummed record.
+     */
+    private Message readOld(long lsn) throws IOException {
+        Map.Entry<Long, Chunk> c = chunks.floorEntry(lsn);
+        if (c == null) {
+            return noMessage();
+        }
+        long relativeLSN = lsn - c.getKey();
+        long chunkSize = c.getValue().size;
+        if (chunkSize <= relativeLSN) {
+            return c.getKey().equals(chunks.lowerKey(formatLSN)) ? read(formatLSN) : noMessage();
+        }
+
+        ChannelCache.Handle in;
+        try {
+            in = readChannels.acquire(getChunkPath(c.getKey()));
+        } catch (NoSuchFileException e) {
+            return noMessage();
+        }
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(OLD_HEADER_SIZE);
+            readFully(in.channel, buf, relativeLSN);
+            buf.flip();
+            long messageSize = buf.getLong();
+            if (messageSize < 0 || chunkSize < relativeLSN + OLD_HEADER_SIZE + messageSize) {
+                throw new StreamCorruptedException(
+                        String.format("%s/%s is %s bytes but chunk is %s bytes", relativeLSN, lsn, messageSize, chunkSize));
+            }
+            long lsnAfter = lsn + OLD_HEADER_SIZE + messageSize;
+            if (getBaseLSN(lsnAfter) != c.getKey()) {
+                lsnAfter = getBaseLSN(lsnAfter) + CHUNK_SIZE;
             }
+            return new Message(new ChannelInputStream(in, relativeLSN + OLD_HEADER_SIZE, messageSize), messageSize,
+                    lsnAfter);
+        } catch (IOException | RuntimeException e) {
+            in.close();
             throw e;
         }
     }
+
+    private Message noMessage() {
+        return new Message((InputStream) null, committedLSN);
+    }
+
+    private Message getMapped(ByteBuffer map, long lsn, long relativeLSN) throws IOException {
+        long chunkSize = map.limit();
+        if (chunkSize <= relativeLSN) {
+            return noMessage();
+        }
+        if (chunkSize < relativeLSN + HEADER_SIZE) {
+            throw new StreamCorruptedException(
+                    String.format("%s/%s is past the end of a %s bytes chunk", relativeLSN, lsn, chunkSize));
+        }
+        long messageSize = map.getLong((int) relativeLSN) & ~MORE;
+        if (chunkSize < relativeLSN + HEADER_SIZE + messageSize) {
+            throw new StreamCorruptedException(
+                    String.format("%s/%s is %s bytes but chunk is %s bytes", relativeLSN, lsn, messageSize, chunkSize));
+        }
+
+        return new Message(slice(map, relativeLSN + HEADER_SIZE, messageSize), getLSNAfter(lsn, messageSize));
+    }
+
+    private static ByteBuffer slice(ByteBuffer map, long position, long size) {
+        ByteBuffer data = map.duplicate();
+        data.position((int) position);
+        data.limit((int) (position + size));
+        return data.slice();
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = in.read(buf, position);
+            if (n < 0) {
+                throw new EOFException(buf.remaining() + " bytes short at " + position);
+            }
+            position += n;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = requireNonNull(buf);
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            n = Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + (int) n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+
+    /**
+     * ChannelInputStream reads a region of a shared channel with positional
+     * reads, and releases the channel when it's closed.
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final ChannelCache.Handle handle;
+        private long position;
+        private long remaining;
+        private boolean closed;
+
+        ChannelInputStream(ChannelCache.Handle handle, long position, long size) {
+            this.handle = requireNonNull(handle);
+            this.position = position;
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (remaining == 0) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(b, off, (int) Math.min(len, remaining));
+            int n = handle.channel.read(buf, position);
+            if (n < 0) {
+                throw new EOFException(remaining + " bytes short at " + position);
+            }
+            position += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            n = Math.max(0, Math.min(n, remaining));
+            position += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                handle.close();
+            }
+        }
+    }
 }
@@ -0,0 +1,46 @@
+package us.hxbc.clusterhq.queue;
+
+import java.util.Locale;
+
+/**
+ * Durability is how far a message has to make it before its publish
+ * returns and subscribers can see it.
+ */
+public enum Durability {
+    /**
+     * Synced to disk.
+     */
+    ALWAYS,
+    /**
+     * Written to the page cache, and synced in the background within
+     * durability.intervalMs.
+     */
+    BATCHED,
+    /**
+     * Written to the page cache, the OS syncs it whenever it likes.
+     */
+    OS,
+    /**
+     * Only kept in memory, which is what memory topics do. Publishes can't
+     * ask for it.
+     */
+    NONE;
+
+    /**
+     * Parses the lower case name, throws IllegalArgumentException if there's
+     * no such level.
+     */
+    static Durability parse(String name) {
+        for (Durability d : values()) {
+            if (d != NONE && d.toString().equals(name.trim())) {
+                return d;
+            }
+        }
+        throw new IllegalArgumentException("unknown durability " + name);
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
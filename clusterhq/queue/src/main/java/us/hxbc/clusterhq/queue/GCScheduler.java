@@ -0,0 +1,184 @@
+package us.hxbc.clusterhq.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GCScheduler runs GC for all topics on a shared pool of workers. Queues
+ * ask for GC once their minimum subscriber LSN moves past a chunk boundary,
+ * and each pass only visits the queues that asked since the previous pass.
+ *
+ * Other periodic per topic housekeeping, like interval checkpoints, runs on
+ * the same workers.
+ */
+public class GCScheduler {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService workers;
+    private final Set<Queue> pending = ConcurrentHashMap.newKeySet();
+    private CompletableFuture<Void> passing = CompletableFuture.completedFuture(null); // guarded by this
+    private long passes, topics, chunks, nanos; // guarded by this
+    private int lastPassChunks;
+    private long lastPassNanos;
+
+    public GCScheduler(int nworkers, long intervalMs) {
+        if (nworkers <= 0) {
+            throw new IllegalArgumentException(nworkers + " <= 0");
+        }
+        workers = Executors.newFixedThreadPool(nworkers);
+        timer.scheduleWithFixedDelay(this::startPass, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    void requestGC(Queue q) {
+        pending.add(q);
+    }
+
+    void cancel(Queue q) {
+        pending.remove(q);
+    }
+
+    /**
+     * Runs task on the workers every periodMs. Returns null once stopped, a
+     * topic can still finish opening after that.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long periodMs) {
+        try {
+            return timer.scheduleAtFixedRate(() -> {
+                try {
+                    workers.execute(task);
+                } catch (RejectedExecutionException e) {
+                    // shutting down
+                }
+            }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped
+            return null;
+        }
+    }
+
+    /**
+     * Runs task once on the workers.
+     */
+    void execute(Runnable task) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    /**
+     * Runs task once on the workers after delayMs.
+     */
+    void execute(Runnable task, long delayMs) {
+        try {
+            timer.schedule(() -> execute(task), delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    /**
+     * Starts a pass unless the previous one is still going. The timer doesn't
+     * wait for it, the other scheduled tasks would be late otherwise.
+     */
+    private synchronized void startPass() {
+        if (passing.isDone()) {
+            passing = gcPending();
+        }
+    }
+
+    /**
+     * Runs a pass and waits for it, after the one that's going if any.
+     */
+    void pass() {
+        boolean started;
+        CompletableFuture<Void> p;
+        do {
+            synchronized (this) {
+                started = passing.isDone();
+                if (started) {
+                    passing = gcPending();
+                }
+                p = passing;
+            }
+            p.join();
+        } while (!started);
+    }
+
+    private CompletableFuture<Void> gcPending() {
+        long start = System.nanoTime();
+        List<CompletableFuture<Integer>> tasks = new ArrayList<>();
+        try {
+            for (Queue q : pending) {
+                pending.remove(q);
+                tasks.add(CompletableFuture.supplyAsync(() -> gc(q), workers));
+            }
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()])).thenRun(() -> {
+            int reclaimed = tasks.stream().mapToInt(CompletableFuture::join).sum();
+            long elapsed = System.nanoTime() - start;
+            synchronized (this) {
+                passes++;
+                topics += tasks.size();
+                chunks += reclaimed;
+                nanos += elapsed;
+                lastPassChunks = reclaimed;
+                lastPassNanos = elapsed;
+            }
+            if (!tasks.isEmpty()) {
+                logger.info("gc visited {} topics and reclaimed {} chunks in {}ms", tasks.size(), reclaimed,
+                        TimeUnit.NANOSECONDS.toMillis(elapsed));
+            }
+        });
+    }
+
+    private int gc(Queue q) {
+        try {
+            return q.gcNow();
+        } catch (RuntimeException e) {
+            logger.error("gc failed", e);
+            return 0;
+        }
+    }
+
+    synchronized void appendStats(StringBuilder stats) {
+        stats.append("gc.passes ").append(passes).append('\n');
+        stats.append("gc.topics ").append(topics).append('\n');
+        stats.append("gc.chunks ").append(chunks).append('\n');
+        stats.append("gc.millis ").append(TimeUnit.NANOSECONDS.toMillis(nanos)).append('\n');
+        stats.append("gc.lastPass.chunks ").append(lastPassChunks).append('\n');
+        stats.append("gc.lastPass.millis ").append(TimeUnit.NANOSECONDS.toMillis(lastPassNanos)).append('\n');
+    }
+
+    synchronized void appendMetrics(MetricsWriter out) {
+        out.counter("queue_gc_passes_total", "GC passes over all topics.", "", passes);
+        out.counter("queue_gc_topics_total", "Topics visited by gc passes.", "", topics);
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
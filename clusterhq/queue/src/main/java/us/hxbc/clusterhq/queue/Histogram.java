@@ -0,0 +1,67 @@
+package us.hxbc.clusterhq.queue;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram counts latencies in nanoseconds. Like HdrHistogram every power
+ * of 2 is split into linear sub buckets, 16 of them, so a value is known to
+ * within about 6% and recording is an index computation and an atomic
+ * increment.
+ */
+class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // 2^40ns is about 18 minutes, anything longer goes in the last bucket
+    private static final int MAX_EXP = 40;
+    static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts.incrementAndGet(index(nanos));
+        sum.add(nanos);
+    }
+
+    static int index(long value) {
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        if (exp < SUB_BITS) {
+            return (int) value;
+        }
+        if (exp > MAX_EXP) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the smallest value that's past bucket i.
+     */
+    static long upperBound(int i) {
+        int block = i / SUB_BUCKETS;
+        int sub = i % SUB_BUCKETS;
+        if (block == 0) {
+            return sub + 1;
+        }
+        int exp = block + SUB_BITS - 1;
+        return (1L << exp) + ((long) (sub + 1) << (exp - SUB_BITS));
+    }
+
+    /**
+     * Returns a copy of the bucket counts.
+     */
+    long[] getCounts() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    long getSum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,33 @@
+package us.hxbc.clusterhq.queue;
+
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Lease is a run of consecutive messages handed to one member of a
+ * consumer group. Until the lease is acknowledged the subscription's
+ * checkpoint can't move past them, and once it times out they are handed
+ * to whichever member asks next.
+ */
+public class Lease {
+    /**
+     * What the lease is acknowledged with.
+     */
+    public final String id;
+    public final List<DataStore.Message> messages;
+    /**
+     * Whether the messages were leased before and that lease timed out.
+     */
+    public final boolean redelivered;
+
+    Lease(String id, List<DataStore.Message> messages, boolean redelivered) {
+        this.id = requireNonNull(id);
+        this.messages = requireNonNull(messages);
+        this.redelivered = redelivered;
+    }
+
+    Lease withId(String id) {
+        return new Lease(id, messages, redelivered);
+    }
+}
@@ -17,43 +17,98 @@ public class Main {
     private static Logger logger = LoggerFactory.getLogger(Main.class);
     final HttpServer server;
     final Api api;
+    final GCScheduler gcScheduler;
+    final BinaryServer binaryServer; // null if disabled
 
     Main(int port, Path dir) throws IOException {
+        this(port, dir, 4096, 1);
+    }
+
+    Main(int port, Path dir, long chunkSize, int gcThreads) throws IOException {
+        this(port, dir, chunkSize, gcThreads, -1);
+    }
+
+    /**
+     * Also serves the binary protocol on binaryPort, unless it's negative.
+     */
+    Main(int port, Path dir, long chunkSize, int gcThreads, int binaryPort) throws IOException {
+        this(port, dir, chunkSize, gcThreads, binaryPort, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Existing topics are opened on recoveryThreads threads after the
+     * server is up, or with 0 only when they are first used.
+     */
+    Main(int port, Path dir, long chunkSize, int gcThreads, int binaryPort, int recoveryThreads)
+            throws IOException {
         ResourceConfig rc = new ResourceConfig();
-        api = new Api(dir, 4096);
+        gcScheduler = new GCScheduler(gcThreads, 10000);
+        api = new Api(dir, chunkSize, gcScheduler, recoveryThreads);
         rc.registerInstances(api);
         if (logger.isDebugEnabled()) {
             rc.register(new LoggingFilter(java.util.logging.Logger.getGlobal(), false));
         }
         server = GrizzlyHttpServerFactory.createHttpServer(URI.create("http://0.0.0.0:" + port), rc, false);
+        binaryServer = binaryPort < 0 ? null :
+                new BinaryServer(api, binaryPort, Runtime.getRuntime().availableProcessors());
     }
 
     void start() throws IOException {
         server.start();
+        if (binaryServer != null) {
+            binaryServer.start();
+        }
     }
 
     public int getPort() {
         return server.getListeners().stream().findAny().map(n -> n.getPort()).orElse(0);
     }
 
+    int getBinaryPort() {
+        return binaryServer == null ? -1 : binaryServer.getPort();
+    }
+
     void stop() {
+        if (binaryServer != null) {
+            binaryServer.close();
+        }
         api.stop();
+        gcScheduler.stop();
         server.shutdownNow();
     }
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 2) {
-            System.err.println("Usage: Main <port> <dir>");
+        int gcThreads = 1;
+        long chunkSize = 4096;
+        int binaryPort = -1;
+        int recoveryThreads = Runtime.getRuntime().availableProcessors();
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i++) {
+            if (args[i].startsWith("--gc-threads=")) {
+                gcThreads = Integer.parseInt(args[i].substring("--gc-threads=".length()));
+            } else if (args[i].startsWith("--chunk-size=")) {
+                chunkSize = Long.parseLong(args[i].substring("--chunk-size=".length()));
+            } else if (args[i].startsWith("--binary-port=")) {
+                binaryPort = Integer.parseInt(args[i].substring("--binary-port=".length()));
+            } else if (args[i].startsWith("--recovery-threads=")) {
+                recoveryThreads = Integer.parseInt(args[i].substring("--recovery-threads=".length()));
+            } else {
+                break;
+            }
+        }
+        if (args.length - i != 2) {
+            System.err.println("Usage: Main [--gc-threads=N] [--chunk-size=BYTES] [--binary-port=PORT] " +
+                    "[--recovery-threads=N] <port> <dir>");
             System.exit(1);
         }
 
-        int port = Integer.parseInt(args[0]);
-        Path dir = Paths.get(args[1]);
+        int port = Integer.parseInt(args[i]);
+        Path dir = Paths.get(args[i + 1]);
         if (!Files.isDirectory(dir)) {
             System.err.format("%s is not a directory\n", dir);
             System.exit(1);
         }
 
-        new Main(port, dir).start();
+        new Main(port, dir, chunkSize, gcThreads, binaryPort, recoveryThreads).start();
     }
 }
@@ -0,0 +1,369 @@
+package us.hxbc.clusterhq.queue;
+
+import com.google.common.io.ByteStreams;
+
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.ServerErrorException;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * MemoryTopic is a topic that's only kept in memory, for messages that
+ * aren't worth keeping across a restart. Nothing is written to disk, not
+ * even the subscriptions.
+ *
+ * Messages go to a ring of memory.capacity slots. A publisher claims
+ * sequence numbers by moving the head with a CAS and then fills in their
+ * slots. A slot holds an immutable entry of the sequence number and the
+ * payload, so a reader can tell whether the slot has its message yet or
+ * was already reused for a later one. Every entry also carries where its
+ * batch starts and ends. The slots of a batch are filled in order, and a
+ * reader doesn't take any of a batch until its last slot is filled, so a
+ * batch shows up all at once like in Queue. A subscriber is only the sequence
+ * number of its next message, which consumers claim with a CAS like in
+ * Queue. None of this takes a lock, only waiters do.
+ *
+ * Once the ring is full memory.overflow decides what happens. With
+ * overwrite the oldest messages are overwritten, and a subscriber that
+ * fell behind skips to the oldest batch left with the number of
+ * messages skipped attached like after retention. With drop a publish
+ * that would overwrite what the slowest subscriber hasn't got yet is
+ * rejected with 503.
+ *
+ * LSNs are the sequence numbers, so they go up by one per message.
+ */
+public class MemoryTopic implements Topic {
+    private final TopicConfig config;
+    private final AtomicReferenceArray<Entry> ring;
+    private final AtomicLong head = new AtomicLong(); // the next sequence number
+    private final Map<String, Subscriber> subscriptions = new ConcurrentHashMap<>();
+    private final Set<Runnable> waiters = new LinkedHashSet<>();
+    private final TopicMetrics metrics = new TopicMetrics();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    public MemoryTopic(TopicConfig config) {
+        this.config = requireNonNull(config);
+        ring = new AtomicReferenceArray<>(config.memoryCapacity);
+    }
+
+    @Override
+    public void subscribe(String user) {
+        subscriptions.putIfAbsent(user, new Subscriber(user, head.get()));
+    }
+
+    @Override
+    public void unsubscribe(String user) {
+        if (subscriptions.remove(user) == null) {
+            throw new ClientErrorException(Response.Status.NOT_FOUND);
+        }
+    }
+
+    @Override
+    public void post(InputStream data, String key) throws IOException {
+        post(Collections.singletonList(ByteStreams.toByteArray(data)), key, null);
+    }
+
+    /**
+     * Publishes payloads to consecutive slots, durability doesn't matter.
+     */
+    @Override
+    public long[] post(List<byte[]> payloads, String key, Durability durability) {
+        long start = System.nanoTime();
+        int n = payloads.size();
+        if (n > ring.length()) {
+            throw new ClientErrorException(Response.Status.REQUEST_ENTITY_TOO_LARGE);
+        }
+
+        long seq;
+        if (config.dropOnOverflow) {
+            do {
+                seq = head.get();
+                // a subscriber only moves forward, so a stale minimum just
+                // drops more than it has to
+                if (seq + n - getMinSeq(seq) > ring.length()) {
+                    dropped.add(n);
+                    throw new ServerErrorException(Response.Status.SERVICE_UNAVAILABLE);
+                }
+            } while (!head.compareAndSet(seq, seq + n));
+        } else {
+            seq = head.getAndAdd(n);
+        }
+
+        long[] lsns = new long[n];
+        long bytes = 0;
+        for (int i = 0; i < n; i++) {
+            lsns[i] = seq + i;
+            bytes += payloads.get(i).length;
+            put(new Entry(seq + i, seq, seq + n, payloads.get(i)));
+        }
+        metrics.publishLatency.record(System.nanoTime() - start);
+        metrics.publishedMessages.add(n);
+        metrics.publishedBytes.add(bytes);
+        posted();
+        return lsns;
+    }
+
+    /**
+     * Stores e unless its slot already went to a later message, which can
+     * happen if we were slow and the ring wrapped around in the meantime.
+     */
+    private void put(Entry e) {
+        int slot = slot(e.seq);
+        while (true) {
+            Entry old = ring.get(slot);
+            if ((old != null && old.seq > e.seq) || ring.compareAndSet(slot, old, e)) {
+                return;
+            }
+        }
+    }
+
+    private int slot(long seq) {
+        return (int) (seq & (ring.length() - 1));
+    }
+
+    private long getMinSeq(long head) {
+        long min = head;
+        for (Subscriber s : subscriptions.values()) {
+            min = Math.min(min, s.nextSeq.get());
+        }
+        return min;
+    }
+
+    @Override
+    public Durability getDurability(Durability requested) {
+        return Durability.NONE;
+    }
+
+    private void posted() {
+        List<Runnable> wakeup;
+        synchronized (waiters) {
+            if (waiters.isEmpty()) {
+                return;
+            }
+            wakeup = new ArrayList<>(waiters);
+            waiters.clear();
+        }
+        wakeup.forEach(Runnable::run);
+    }
+
+    @Override
+    public DataStore.Message get(String user) {
+        List<DataStore.Message> messages = get(user, 1, Long.MAX_VALUE);
+        return messages.isEmpty() ? new DataStore.Message((InputStream) null, head.get()) : messages.get(0);
+    }
+
+    /**
+     * Same as Queue.get(user, max, maxBytes).
+     */
+    @Override
+    public List<DataStore.Message> get(String user, int max, long maxBytes) {
+        long start = System.nanoTime();
+        Subscriber subscriber = getSubscriber(user);
+        List<DataStore.Message> messages = new ArrayList<>();
+        while (true) {
+            long seq = subscriber.nextSeq.get();
+            long bytes = 0;
+            for (long next = seq; messages.size() < max; next++) {
+                Entry e = ring.get(slot(next));
+                if (e == null || e.seq < next) {
+                    // not published yet
+                    break;
+                }
+                if (e.seq > next) {
+                    // overwritten, only skip if it's the first one
+                    if (next == seq) {
+                        skip(subscriber, seq);
+                    }
+                    break;
+                }
+                if (e.end > next + 1) {
+                    Entry last = ring.get(slot(e.end - 1));
+                    if (last == null || last.seq < e.end - 1) {
+                        // the rest of the batch isn't published yet
+                        break;
+                    }
+                    if (last.seq > e.end - 1) {
+                        // the batch is being overwritten
+                        if (next == seq) {
+                            skip(subscriber, seq);
+                        }
+                        break;
+                    }
+                }
+                bytes += e.payload.length;
+                if (!messages.isEmpty() && bytes > maxBytes) {
+                    break;
+                }
+                messages.add(new DataStore.Message(ByteBuffer.wrap(e.payload), next + 1));
+            }
+
+            if (messages.isEmpty()) {
+                if (subscriber.nextSeq.get() != seq) {
+                    // skipped
+                    continue;
+                }
+                break;
+            }
+            if (subscriber.nextSeq.compareAndSet(seq, seq + messages.size())) {
+                long skipped = subscriber.skipped.getAndSet(0);
+                messages.set(0, messages.get(0).withSkipped(skipped));
+                metrics.consumedMessages.add(messages.size());
+                for (DataStore.Message m : messages) {
+                    metrics.consumedBytes.add(m.size);
+                }
+                break;
+            }
+            messages.clear();
+        }
+        metrics.consumeLatency.record(System.nanoTime() - start);
+        return messages;
+    }
+
+    /**
+     * A lease has to stay around until it's acknowledged, which a ring that
+     * overwrites doesn't promise.
+     */
+    @Override
+    public Lease lease(String user, int max, long maxBytes, long timeoutMs) {
+        throw new ServerErrorException(Response.Status.NOT_IMPLEMENTED);
+    }
+
+    @Override
+    public void ack(String user, String id) {
+        throw new ServerErrorException(Response.Status.NOT_IMPLEMENTED);
+    }
+
+    /**
+     * Moves subscriber from seq, which was overwritten, to the oldest
+     * batch that's left. The rest of a batch that lost its start goes too.
+     */
+    private void skip(Subscriber subscriber, long seq) {
+        long oldest = Math.max(seq + 1, head.get() - ring.length());
+        Entry e = ring.get(slot(oldest));
+        if (e == null || e.seq < oldest) {
+            // not filled in yet, so we can't tell where its batch starts
+            return;
+        }
+        if (e.seq == oldest && e.start < oldest) {
+            oldest = e.end;
+        }
+        if (subscriber.nextSeq.compareAndSet(seq, oldest)) {
+            subscriber.skipped.addAndGet(oldest - seq);
+            skipped.add(oldest - seq);
+        }
+    }
+
+    private Subscriber getSubscriber(String user) {
+        Subscriber subscriber = subscriptions.get(user);
+        if (subscriber == null) {
+            throw new ClientErrorException(Response.Status.NOT_FOUND);
+        }
+        return subscriber;
+    }
+
+    /**
+     * See Queue.await().
+     */
+    @Override
+    public boolean await(Runnable waiter) {
+        synchronized (waiters) {
+            if (waiters.contains(waiter)) {
+                return true;
+            }
+            if (waiters.size() >= config.maxWaiters) {
+                return false;
+            }
+            waiters.add(waiter);
+            return true;
+        }
+    }
+
+    @Override
+    public void cancel(Runnable waiter) {
+        synchronized (waiters) {
+            waiters.remove(waiter);
+        }
+    }
+
+    public long getNextLSN() {
+        return head.get();
+    }
+
+    @Override
+    public void appendStats(StringBuilder stats) {
+        long nextLSN = getNextLSN();
+        stats.append("nextLSN ").append(nextLSN).append('\n');
+        synchronized (waiters) {
+            stats.append("waiters ").append(waiters.size()).append('\n');
+        }
+        stats.append("firstLSN ").append(Math.max(0, nextLSN - ring.length())).append('\n');
+        stats.append("capacity ").append(ring.length()).append('\n');
+        stats.append("dropped ").append(dropped.sum()).append('\n');
+        stats.append("skipped ").append(skipped.sum()).append('\n');
+    }
+
+    @Override
+    public void appendMetrics(MetricsWriter out, String labels) {
+        metrics.write(out, labels);
+        long nextLSN = getNextLSN();
+        out.gauge("queue_next_lsn", "The LSN the next message will be written at.", labels, nextLSN);
+        out.gauge("queue_subscribers", "Subscribers.", labels, subscriptions.size());
+        out.counter("queue_dropped_messages_total", "Messages a full memory topic didn't take.", labels,
+                dropped.sum());
+        out.counter("queue_skipped_messages_total", "Messages of a memory topic overwritten before a " +
+                "subscriber got them.", labels, skipped.sum());
+        for (Subscriber s : subscriptions.values()) {
+            out.gauge("queue_subscriber_lag_messages", "How far behind a memory topic a subscriber is.",
+                    MetricsWriter.join(labels, MetricsWriter.label("subscriber", s.name)),
+                    Math.max(0, nextLSN - s.nextSeq.get()));
+        }
+    }
+
+    @Override
+    public void start(GCScheduler scheduler) {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    private static class Entry {
+        final long seq;
+        final long start; // the batch's first sequence number
+        final long end; // one past the batch's last sequence number
+        final byte[] payload;
+
+        Entry(long seq, long start, long end, byte[] payload) {
+            this.seq = seq;
+            this.start = start;
+            this.end = end;
+            this.payload = requireNonNull(payload);
+        }
+    }
+
+    private static class Subscriber {
+        final String name;
+        final AtomicLong nextSeq;
+        final AtomicLong skipped = new AtomicLong();
+
+        Subscriber(String name, long nextSeq) {
+            this.name = requireNonNull(name);
+            this.nextSeq = new AtomicLong(nextSeq);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package us.hxbc.clusterhq.queue;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MetricsWriter collects samples and writes them out in the Prometheus
+ * text format. Samples of the same metric can come from many topics, they
+ * are grouped under one TYPE line.
+ */
+class MetricsWriter {
+    // latency buckets in seconds, the histograms are finer than this
+    private static final String[] BUCKETS = {
+            "0.000001", "0.0000025", "0.000005", "0.00001", "0.000025", "0.00005", "0.0001", "0.00025",
+            "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5",
+            "5", "10"};
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    void counter(String name, String help, String labels, long value) {
+        family(name, help, "counter").samples.add(name + braces(labels) + ' ' + value);
+    }
+
+    void gauge(String name, String help, String labels, long value) {
+        family(name, help, "gauge").samples.add(name + braces(labels) + ' ' + value);
+    }
+
+    /**
+     * Writes h, which is in nanoseconds, as a histogram in seconds.
+     */
+    void histogram(String name, String help, String labels, Histogram h) {
+        List<String> samples = family(name, help, "histogram").samples;
+        long[] counts = h.getCounts();
+        String prefix = labels.isEmpty() ? "" : labels + ',';
+        long cumulative = 0;
+        int i = 0;
+        for (String le : BUCKETS) {
+            long bound = new BigDecimal(le).movePointRight(9).longValueExact();
+            for (; i < counts.length && Histogram.upperBound(i) <= bound + 1; i++) {
+                cumulative += counts[i];
+            }
+            samples.add(name + "_bucket{" + prefix + "le=\"" + le + "\"} " + cumulative);
+        }
+        for (; i < counts.length; i++) {
+            cumulative += counts[i];
+        }
+        samples.add(name + "_bucket{" + prefix + "le=\"+Inf\"} " + cumulative);
+        samples.add(name + "_sum" + braces(labels) + ' ' + h.getSum() / 1e9);
+        samples.add(name + "_count" + braces(labels) + ' ' + cumulative);
+    }
+
+    /**
+     * Returns name="value" with value escaped, to be joined with commas.
+     */
+    static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+    }
+
+    /**
+     * Adds label, as returned by label(), to labels.
+     */
+    static String join(String labels, String label) {
+        return labels.isEmpty() ? label : labels + ',' + label;
+    }
+
+    private Family family(String name, String help, String type) {
+        return families.computeIfAbsent(name, n -> new Family(help, type));
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : '{' + labels + '}';
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        families.forEach((name, f) -> {
+            out.append("# HELP ").append(name).append(' ').append(f.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(f.type).append('\n');
+            f.samples.forEach(s -> out.append(s).append('\n'));
+        });
+        return out.toString();
+    }
+
+    private static class Family {
+        final String help;
+        final String type;
+        final List<String> samples = new ArrayList<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package us.hxbc.clusterhq.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * OffsetTable stores the LSNs of all subscribers of a topic in two files:
+ *
+ * "offsets" is a memory mapped table of 8 byte slots, one per subscriber.
+ * A free slot holds FREE.
+ *
+ * "index" is an append only log of (slot, name) records. A slot belongs to
+ * the name of its last record, and only if the slot isn't free. Subscribing
+ * appends to the index before the slot is written, so a crash in between
+ * leaves a free slot rather than resurrecting whoever had the slot before.
+ * Unsubscribing only frees the slot, the index is compacted on load once
+ * most of it is garbage.
+ *
+ * Both files are loaded with one sequential read each. The minimum LSN is
+ * maintained in a segment tree over the slots so it's available without
+ * scanning every subscriber.
+ */
+class OffsetTable implements Closeable {
+    static final long FREE = -1;
+    private static final int MIN_SLOTS = 1024;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Path offsetsPath, indexPath;
+    private final FileChannel offsets;
+    private FileChannel index;
+    private volatile MappedByteBuffer map; // replaced under this
+    private int capacity;
+    private long[] tree; // tree[capacity + slot] is the slot, tree[1] the minimum
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+
+    OffsetTable(Path dir) throws IOException {
+        requireNonNull(dir);
+        offsetsPath = dir.resolve("offsets");
+        indexPath = dir.resolve("index");
+        offsets = FileChannel.open(offsetsPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load();
+    }
+
+    private void load() throws IOException {
+        Map<Integer, String> names = new HashMap<>();
+        int records = 0;
+        long validLength = 0;
+        if (Files.exists(indexPath)) {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+            while (buf.remaining() >= 8) {
+                int slot = buf.getInt();
+                int len = buf.getInt();
+                if (slot < 0 || len < 0 || buf.remaining() < len) {
+                    break;
+                }
+                byte[] name = new byte[len];
+                buf.get(name);
+                names.put(slot, new String(name, StandardCharsets.UTF_8));
+                records++;
+                validLength = buf.position();
+            }
+        }
+
+        long size = offsets.size();
+        int nslots = (int) (size / 8);
+        remap(Math.max(MIN_SLOTS, Integer.highestOneBit(Math.max(nslots, 1) * 2 - 1)));
+        for (int slot = 0; slot < capacity; slot++) {
+            long lsn = slot < nslots ? map.getLong(slot * 8) : FREE;
+            String name = names.get(slot);
+            if (name == null || lsn == FREE) {
+                if (lsn != FREE) {
+                    map.putLong(slot * 8, FREE);
+                }
+                freeSlots.add(slot);
+                tree[capacity + slot] = Long.MAX_VALUE;
+            } else {
+                slots.put(name, slot);
+                tree[capacity + slot] = lsn;
+            }
+        }
+        for (int i = capacity - 1; i > 0; i--) {
+            tree[i] = Math.min(tree[2 * i], tree[2 * i + 1]);
+        }
+
+        if (records > 2 * slots.size() + MIN_SLOTS) {
+            compactIndex();
+        } else {
+            index = FileChannel.open(indexPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            // drop a torn record at the end
+            index.truncate(validLength);
+            index.position(validLength);
+        }
+        logger.info("loaded {} subscribers from {} index records", slots.size(), records);
+    }
+
+    private void remap(int newCapacity) throws IOException {
+        if (offsets.size() < newCapacity * 8L) {
+            // newly allocated slots are free, they won't be in the index
+            // until they are handed out so a crash while filling is harmless
+            ByteBuffer fill = ByteBuffer.allocate((int) (newCapacity * 8L - offsets.size()));
+            while (fill.hasRemaining()) {
+                fill.putLong(FREE);
+            }
+            fill.flip();
+            long position = offsets.size();
+            while (fill.hasRemaining()) {
+                position += offsets.write(fill, position);
+            }
+        }
+        map = offsets.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity * 8L);
+
+        long[] newTree = new long[newCapacity * 2];
+        Arrays.fill(newTree, Long.MAX_VALUE);
+        for (int slot = 0; slot < capacity; slot++) {
+            newTree[newCapacity + slot] = tree[capacity + slot];
+        }
+        for (int slot = capacity; slot < newCapacity; slot++) {
+            if (tree != null) {
+                freeSlots.add(slot);
+            }
+        }
+        int oldCapacity = capacity;
+        capacity = newCapacity;
+        tree = newTree;
+        if (oldCapacity != 0) {
+            for (int i = capacity - 1; i > 0; i--) {
+                tree[i] = Math.min(tree[2 * i], tree[2 * i + 1]);
+            }
+        }
+    }
+
+    private void compactIndex() throws IOException {
+        Path tmp = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Integer> e : slots.entrySet()) {
+                ByteBuffer buf = indexRecord(e.getValue(), e.getKey());
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            }
+            out.force(true);
+        }
+        Files.move(tmp, indexPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        index = FileChannel.open(indexPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        logger.info("compacted index to {} records", slots.size());
+    }
+
+    private static ByteBuffer indexRecord(int slot, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(8 + bytes.length);
+        buf.putInt(slot).putInt(bytes.length).put(bytes);
+        buf.flip();
+        return buf;
+    }
+
+    synchronized Map<String, Integer> getSlots() {
+        return Collections.unmodifiableMap(new HashMap<>(slots));
+    }
+
+    synchronized long get(int slot) {
+        return map.getLong(slot * 8);
+    }
+
+    /**
+     * Hands out a slot for name, initialized to lsn and durable by the time
+     * this returns.
+     */
+    synchronized int allocate(String name, long lsn) throws IOException {
+        if (slots.containsKey(name)) {
+            throw new IllegalArgumentException(name + " already has a slot");
+        }
+        if (freeSlots.isEmpty()) {
+            remap(capacity * 2);
+        }
+        int slot = freeSlots.remove();
+        ByteBuffer buf = indexRecord(slot, name);
+        while (buf.hasRemaining()) {
+            index.write(buf);
+        }
+        index.force(true);
+        slots.put(name, slot);
+        set(slot, lsn);
+        force();
+        return slot;
+    }
+
+    synchronized void free(String name) throws IOException {
+        Integer slot = slots.remove(name);
+        if (slot == null) {
+            throw new IllegalArgumentException(name + " has no slot");
+        }
+        map.putLong(slot * 8, FREE);
+        update(slot, Long.MAX_VALUE);
+        force();
+        freeSlots.add(slot);
+    }
+
+    /**
+     * Updates a slot, it's not durable until the next force().
+     */
+    synchronized void set(int slot, long lsn) {
+        if (lsn < 0) {
+            throw new IllegalArgumentException(lsn + " < 0");
+        }
+        map.putLong(slot * 8, lsn);
+        update(slot, lsn);
+    }
+
+    /**
+     * Makes the slots durable. It doesn't take the monitor so that set()
+     * isn't held up by the msync, a remap doesn't matter as both mappings
+     * are of the same file.
+     */
+    void force() {
+        map.force();
+    }
+
+    /**
+     * Returns the minimum LSN of all slots that are in use, or
+     * Long.MAX_VALUE if there's none.
+     */
+    synchronized long min() {
+        return tree[1];
+    }
+
+    private void update(int slot, long value) {
+        int i = capacity + slot;
+        tree[i] = value;
+        for (i /= 2; i > 0; i /= 2) {
+            tree[i] = Math.min(tree[2 * i], tree[2 * i + 1]);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        index.close();
+        offsets.close();
+    }
+}
@@ -0,0 +1,323 @@
+package us.hxbc.clusterhq.queue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * PartitionedTopic splits a topic into independent Queues, each with its
+ * own DataStore and offset table, so publishers to different partitions
+ * don't contend on the same lock or share an fsync stream.
+ *
+ * Messages with a key always go to the same partition, the rest are spread
+ * round robin. Every subscriber is subscribed to every partition and keeps
+ * an offset in each, consumers take turns starting from a different
+ * partition so one busy partition can't starve the others. Ordering is only
+ * kept within a partition.
+ */
+public class PartitionedTopic implements Topic {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Queue[] partitions;
+    private final TopicConfig config;
+    private final AtomicInteger nextPartition = new AtomicInteger();
+    private final AtomicInteger nextRead = new AtomicInteger();
+    private final Set<Runnable> waiters = new LinkedHashSet<>();
+    private final Runnable wakeup = this::wakeup;
+
+    public PartitionedTopic(Path dir, long chunkSize, TopicConfig config) throws IOException {
+        requireNonNull(dir);
+        this.config = requireNonNull(config);
+        Path dataDir = dir.resolve("data");
+        Path subscriptionDir = dir.resolve("subscriptions");
+        checkLayout(dataDir, subscriptionDir, config.partitions);
+
+        partitions = new Queue[config.partitions];
+        for (int p = 0; p < partitions.length; p++) {
+            String name = Integer.toString(p);
+            partitions[p] = new Queue(dataDir.resolve(name), subscriptionDir.resolve(name), chunkSize, config);
+        }
+
+        // new partitions, or a crash in the middle of subscribe(), can leave
+        // a subscriber missing from some of them
+        Set<String> users = new HashSet<>();
+        for (Queue q : partitions) {
+            users.addAll(q.getSubscribers());
+        }
+        for (String user : users) {
+            subscribe(user);
+        }
+        logger.info("opened {} partitions with {} subscribers", partitions.length, users.size());
+    }
+
+    /**
+     * Refuses to open a topic that has data or subscribers from before it
+     * was partitioned, since the partitions wouldn't see them. The files an
+     * unpartitioned Queue leaves behind when it has neither are deleted.
+     */
+    private void checkLayout(Path dataDir, Path subscriptionDir, int npartitions) throws IOException {
+        List<Path> unpartitioned = new ArrayList<>();
+        for (Path dir : new Path[]{dataDir, subscriptionDir}) {
+            if (!Files.isDirectory(dir)) {
+                continue;
+            }
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path p : (Iterable<Path>) files::iterator) {
+                    if (!Files.isDirectory(p)) {
+                        unpartitioned.add(p);
+                    } else if (Integer.parseInt(p.getFileName().toString()) >= npartitions) {
+                        throw new IllegalStateException(p + " is beyond " + npartitions + " partitions");
+                    }
+                }
+            }
+        }
+        if (unpartitioned.isEmpty()) {
+            return;
+        }
+
+        boolean offsets = false;
+        for (Path p : unpartitioned) {
+            String name = p.getFileName().toString();
+            if (p.getParent().equals(dataDir)) {
+                if (!name.equals(DataStore.FORMAT) && !name.equals(DataStore.FORMAT + ".tmp") &&
+                        !name.equals(DataStore.PREALLOCATED)) {
+                    throw new IllegalStateException(dataDir + " has unpartitioned data");
+                }
+            } else if (name.equals("offsets") || name.startsWith("index")) {
+                offsets = true;
+            } else {
+                // a subscription from before the offset table
+                throw new IllegalStateException(subscriptionDir + " has unpartitioned subscriptions");
+            }
+        }
+        if (offsets) {
+            try (OffsetTable table = new OffsetTable(subscriptionDir)) {
+                if (!table.getSlots().isEmpty()) {
+                    throw new IllegalStateException(subscriptionDir + " has unpartitioned subscriptions " +
+                            table.getSlots().keySet());
+                }
+            }
+        }
+        for (Path p : unpartitioned) {
+            logger.info("deleting {} of the empty unpartitioned topic", p);
+            Files.deleteIfExists(p);
+        }
+    }
+
+    @Override
+    public void subscribe(String user) throws IOException {
+        for (Queue q : partitions) {
+            q.subscribe(user);
+        }
+    }
+
+    @Override
+    public void unsubscribe(String user) throws IOException {
+        for (Queue q : partitions) {
+            q.unsubscribe(user);
+        }
+    }
+
+    @Override
+    public void post(InputStream data, String key) throws IOException {
+        getPartition(key).post(data);
+    }
+
+    /**
+     * Without a key the whole batch goes to the same partition, so it
+     * still only takes one flush.
+     */
+    @Override
+    public long[] post(List<byte[]> payloads, String key, Durability durability) throws IOException {
+        return getPartition(key).post(payloads, key, durability);
+    }
+
+    @Override
+    public Durability getDurability(Durability requested) {
+        return requested == null ? config.durability : requested;
+    }
+
+    private Queue getPartition(String key) {
+        int p = key == null ? nextPartition.getAndIncrement() : key.hashCode();
+        return partitions[Math.floorMod(p, partitions.length)];
+    }
+
+    @Override
+    public DataStore.Message get(String user) throws IOException {
+        int start = nextRead.getAndIncrement();
+        DataStore.Message m = null;
+        for (int i = 0; i < partitions.length; i++) {
+            m = partitions[Math.floorMod(start + i, partitions.length)].get(user);
+            if (m.in != null) {
+                break;
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Fills the batch from one partition after another, the messages of each
+     * partition are consecutive and in order. If a partition fails after
+     * others handed out messages, those are returned since they can't be
+     * given back.
+     */
+    @Override
+    public List<DataStore.Message> get(String user, int max, long maxBytes) throws IOException {
+        int start = nextRead.getAndIncrement();
+        List<DataStore.Message> messages = new ArrayList<>();
+        long bytes = 0;
+        try {
+            for (int i = 0; i < partitions.length && messages.size() < max && bytes < maxBytes; i++) {
+                Queue q = partitions[Math.floorMod(start + i, partitions.length)];
+                List<DataStore.Message> got = q.get(user, max - messages.size(), maxBytes - bytes,
+                        messages.isEmpty());
+                for (DataStore.Message m : got) {
+                    bytes += m.size;
+                }
+                messages.addAll(got);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (messages.isEmpty()) {
+                throw e;
+            }
+            logger.warn("returning a partial batch for " + user, e);
+        }
+        return messages;
+    }
+
+    /**
+     * Leases from one partition, trying them in the same order as get().
+     * The lease id is prefixed with the partition.
+     */
+    @Override
+    public Lease lease(String user, int max, long maxBytes, long timeoutMs) throws IOException {
+        int start = nextRead.getAndIncrement();
+        for (int i = 0; i < partitions.length; i++) {
+            int p = Math.floorMod(start + i, partitions.length);
+            Lease lease = partitions[p].lease(user, max, maxBytes, timeoutMs);
+            if (lease != null) {
+                return lease.withId(p + ":" + lease.id);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void ack(String user, String id) throws IOException {
+        int sep = id.indexOf(':');
+        int p;
+        try {
+            p = sep < 0 ? -1 : Integer.parseInt(id.substring(0, sep));
+        } catch (NumberFormatException e) {
+            p = -1;
+        }
+        if (p < 0 || p >= partitions.length) {
+            throw new ClientErrorException(Response.Status.NOT_FOUND);
+        }
+        partitions[p].ack(user, id.substring(sep + 1));
+    }
+
+    /**
+     * Waiters are kept here rather than in every partition, only wakeup is
+     * registered with the partitions.
+     */
+    @Override
+    public boolean await(Runnable waiter) {
+        synchronized (waiters) {
+            if (!waiters.contains(waiter)) {
+                if (waiters.size() >= config.maxWaiters) {
+                    return false;
+                }
+                waiters.add(waiter);
+            }
+        }
+        for (Queue q : partitions) {
+            q.await(wakeup);
+        }
+        return true;
+    }
+
+    @Override
+    public void cancel(Runnable waiter) {
+        synchronized (waiters) {
+            waiters.remove(waiter);
+        }
+    }
+
+    private void wakeup() {
+        List<Runnable> wakeup;
+        synchronized (waiters) {
+            if (waiters.isEmpty()) {
+                return;
+            }
+            wakeup = new ArrayList<>(waiters);
+            waiters.clear();
+        }
+        wakeup.forEach(Runnable::run);
+    }
+
+    Queue getPartition(int p) {
+        return partitions[p];
+    }
+
+    @Override
+    public void appendStats(StringBuilder stats) {
+        stats.append("partitions ").append(partitions.length).append('\n');
+        synchronized (waiters) {
+            stats.append("waiters ").append(waiters.size()).append('\n');
+        }
+        List<TailCache> caches = new ArrayList<>();
+        long coalescedReads = 0, leases = 0, redeliveries = 0;
+        for (int p = 0; p < partitions.length; p++) {
+            coalescedReads += partitions[p].getCoalescedReads();
+            leases += partitions[p].getLeaseCount();
+            redeliveries += partitions[p].getRedeliveries();
+            stats.append("nextLSN.").append(p).append(' ').append(partitions[p].getNextLSN()).append('\n');
+            if (partitions[p].getTailCache() != null) {
+                caches.add(partitions[p].getTailCache());
+            }
+        }
+        stats.append("coalescedReads ").append(coalescedReads).append('\n');
+        stats.append("leases ").append(leases).append('\n');
+        stats.append("redeliveries ").append(redeliveries).append('\n');
+        if (!caches.isEmpty()) {
+            TailCache.appendStats(stats, caches);
+        }
+    }
+
+    @Override
+    public void appendMetrics(MetricsWriter out, String labels) {
+        for (int p = 0; p < partitions.length; p++) {
+            partitions[p].appendMetrics(out,
+                    MetricsWriter.join(labels, MetricsWriter.label("partition", Integer.toString(p))));
+        }
+    }
+
+    @Override
+    public void start(GCScheduler scheduler) {
+        for (Queue q : partitions) {
+            q.start(scheduler);
+        }
+    }
+
+    @Override
+    public void stop() {
+        for (Queue q : partitions) {
+            q.stop();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package us.hxbc.clusterhq.queue;
 
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -7,205 +9,833 @@ import javax.ws.rs.ClientErrorException;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.io.StreamCorruptedException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
-import static com.google.common.base.Throwables.propagate;
 import static java.util.Objects.requireNonNull;
 
 /**
  * Queue manages subscriptions. It uses DataStore to store the actual
  * messages. Each subscription contains the next LSN to start
  * retrieving messages at. This LSN is updated each time a message is
- * retrieved.
+ * retrieved. Subscriptions are stored in an OffsetTable.
+ *
+ * Retrieving a message doesn't take any lock. A consumer reads the message
+ * at the subscriber's LSN and then claims it by moving the LSN past it
+ * with a CAS. If another consumer of the same subscription got there
+ * first, the message is dropped and the consumer retries at the new LSN,
+ * so concurrent consumers each get distinct messages.
+ *
+ * The LSN is kept in memory and checkpointed to disk according to the
+ * topic's checkpoint policy: every checkpoint.every messages, every
+ * checkpoint.intervalMs milliseconds, or both. The default checkpoints
+ * after every message. A clean stop() always checkpoints everyone. After
+ * a crash a subscriber resumes from its last checkpoint, so it may be
+ * handed again up to checkpoint.every - 1 messages, or whatever it
+ * consumed in the last checkpoint.intervalMs, whichever bound applies
+ * first. GC only considers checkpointed LSNs so those messages are
+ * still around.
+ *
+ * Subscribers reading the same LSN at the same time share one read: the
+ * first one reads the message into memory and the others wait for it and
+ * get their own view of the same buffer. This keeps broadcast topics from
+ * reading the same bytes once per subscriber.
+ *
+ * Retention limits override all of the above: chunks beyond
+ * retention.bytes or retention.ms are deleted even if some subscribers
+ * haven't got to them. A subscriber that finds its LSN gone is moved to
+ * the oldest message left, and the number of LSNs it skipped is attached
+ * to the next message it gets.
+ *
+ * A subscription can also be drained by a consumer group, whose members
+ * lease runs of messages instead of just taking them. Leasing claims
+ * messages the same way, but they are also remembered until acknowledged
+ * and the checkpoint stays at the oldest unacknowledged lease. A lease
+ * that isn't acknowledged in time is handed to the next member that asks,
+ * and after a restart everything from the oldest one on is delivered
+ * again.
  */
-public class Queue {
-    private static final long CHUNK_SIZE = 4 * 1024; // 4KB
+public class Queue implements Topic {
+    private static final long RETENTION_CHECK_MS = 1000;
+    // messages that aren't in memory already are only read into memory,
+    // and shared, if they are this small
+    private static final long MAX_SHARED_BYTES = 1024 * 1024;
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final Path dataDir, subscriptionDir;
-    private final Map<String, Subscriber> subscriptions = new HashMap<>();
+    private final Map<String, Subscriber> subscriptions = new ConcurrentHashMap<>();
     private final DataStore dataStore;
-    private final Thread gcThread;
-    private long minLSN = 0;
-    private boolean shutdown = false;
+    private final OffsetTable offsets;
+    private final TopicConfig config;
+    private final Set<Runnable> waiters = new LinkedHashSet<>();
+    private GCScheduler gcScheduler;
+    private ScheduledFuture<?> checkpointer;
+    private ScheduledFuture<?> retention;
+    private volatile long minLSN = 0;
+    // reads in progress, for subscribers that want the same LSN
+    private final Map<Long, SharedRead> reads = new ConcurrentHashMap<>();
+    private final LongAdder coalescedReads = new LongAdder();
+    private final LongAdder redeliveries = new LongAdder();
+    private final TopicMetrics metrics;
 
     public Queue(Path dir, long chunkSize) throws IOException {
-        requireNonNull(dir);
-        if (!Files.isDirectory(dir)) {
-            throw new IllegalArgumentException(dir + " is not a directory");
-        }
+        this(dir, chunkSize, TopicConfig.load(dir));
+    }
 
-        dataDir = dir.resolve("data");
-        if (!Files.isDirectory(dataDir)) {
-            Files.createDirectory(dataDir);
-        }
-        subscriptionDir = dir.resolve("subscriptions");
-        if (!Files.isDirectory(subscriptionDir)) {
-            Files.createDirectory(subscriptionDir);
-        }
-        gcThread = new Thread(() -> {
-            while (true) {
-                synchronized (this) {
-                    if (shutdown) {
-                        break;
-                    }
-                }
+    public Queue(Path dir, long chunkSize, TopicConfig config) throws IOException {
+        this(checkDirectory(dir).resolve("data"), dir.resolve("subscriptions"), chunkSize, config);
+    }
 
-                gcNow();
-                try {
-                    Thread.sleep(10000);
-                } catch (InterruptedException e) {
-                }
-            }
-        });
+    /**
+     * Creates a queue that keeps its messages in dataDir and its
+     * subscriptions in subscriptionDir, they are created if needed.
+     */
+    Queue(Path dataDir, Path subscriptionDir, long chunkSize, TopicConfig config) throws IOException {
+        this.dataDir = requireNonNull(dataDir);
+        this.subscriptionDir = requireNonNull(subscriptionDir);
+        this.config = requireNonNull(config);
+        Files.createDirectories(dataDir);
+        Files.createDirectories(subscriptionDir);
 
+        offsets = new OffsetTable(subscriptionDir);
         init();
         long maxLSN = 0;
-        synchronized (subscriptions) {
-            for (Subscriber s : subscriptions.values()) {
-                synchronized (s) {
-                    if (s.nextLSN > maxLSN) {
-                        maxLSN = s.nextLSN;
-                    }
-                }
+        for (Subscriber s : subscriptions.values()) {
+            maxLSN = Math.max(maxLSN, s.nextLSN.get());
+        }
+
+        dataStore = new DataStore(dataDir, chunkSize, maxLSN, config);
+        metrics = dataStore.getMetrics();
+        clampCheckpoints();
+    }
+
+    /**
+     * Moves subscribers that checkpointed past the end of the log back to
+     * it. Without ALWAYS durability messages are read before they are
+     * synced, so a crash can lose messages whose checkpoint survived.
+     */
+    private void clampCheckpoints() {
+        long nextLSN = dataStore.getCommittedLSN();
+        boolean dirty = false;
+        for (Subscriber s : subscriptions.values()) {
+            if (s.nextLSN.get() > nextLSN) {
+                logger.warn("{} checkpointed {} but the log ends at {}, the messages in between were lost",
+                        s.name, s.nextLSN.get(), nextLSN);
+                s.nextLSN.set(nextLSN);
+                s.checkpointLSN = nextLSN;
+                offsets.set(s.slot, nextLSN);
+                dirty = true;
             }
         }
+        if (dirty) {
+            offsets.force();
+        }
+    }
 
-        dataStore = new DataStore(dataDir, chunkSize, maxLSN);
+    private static Path checkDirectory(Path dir) {
+        if (!Files.isDirectory(requireNonNull(dir))) {
+            throw new IllegalArgumentException(dir + " is not a directory");
+        }
+        return dir;
     }
 
     private void init() throws IOException {
-        Files.list(subscriptionDir).forEach(p -> {
-            String name = p.getFileName().toString();
-            try (FileChannel in = FileChannel.open(p,
-                    StandardOpenOption.READ)) {
-                ByteBuffer buf = ByteBuffer.allocate(8);
-                in.read(buf);
-                buf.position(0);
-                long nextLSN = buf.getLong();
-                subscriptions.put(name, new Subscriber(name, nextLSN));
-                logger.info("discovered subscriber {} @ {}", name, nextLSN);
-            } catch (IOException e) {
-                throw propagate(e);
+        offsets.getSlots().forEach((name, slot) ->
+                subscriptions.put(name, new Subscriber(name, slot, offsets.get(slot))));
+        logger.info("discovered {} subscribers", subscriptions.size());
+
+        // subscriptions used to be one file each, move them to the table
+        try (Stream<Path> files = Files.list(subscriptionDir)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                String name = p.getFileName().toString();
+                if (name.equals("offsets") || name.startsWith("index")) {
+                    continue;
+                }
+                if (!subscriptions.containsKey(name)) {
+                    ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(p));
+                    long nextLSN = buf.getLong();
+                    int slot = offsets.allocate(name, nextLSN);
+                    subscriptions.put(name, new Subscriber(name, slot, nextLSN));
+                    logger.info("migrated subscriber {} @ {}", name, nextLSN);
+                }
+                Files.delete(p);
             }
-        });
+        }
     }
 
+    @Override
     public void subscribe(String user) throws IOException {
-        synchronized (subscriptions) {
+        synchronized (offsets) {
             if (subscriptions.containsKey(user)) {
                 return;
             }
-            Path p = subscriptionDir.resolve(user);
-            long nextLSN = dataStore.getNextLSN();
-            try (FileChannel out = FileChannel.open(p,
-                    StandardOpenOption.CREATE,
-                    StandardOpenOption.WRITE,
-                    StandardOpenOption.TRUNCATE_EXISTING)) {
-                ByteBuffer buf = ByteBuffer.allocate(8).putLong(nextLSN);
-                buf.position(0);
-                out.write(buf);
-                out.force(true);
-            }
-            subscriptions.put(user, new Subscriber(user, nextLSN));
+            // not getNextLSN(), a batch that's still to be written may fail
+            // and give its LSNs to other messages
+            long nextLSN = dataStore.getCommittedLSN();
+            int slot = offsets.allocate(user, nextLSN);
+            subscriptions.put(user, new Subscriber(user, slot, nextLSN));
         }
     }
 
+    /**
+     * Appends a message, the key doesn't matter since there's only one
+     * partition.
+     */
+    @Override
+    public void post(InputStream data, String key) throws IOException {
+        post(data);
+    }
+
     public void post(InputStream data) throws IOException {
         dataStore.post(data);
+        posted();
     }
 
-    public DataStore.Message get(String user) throws IOException {
-        Subscriber subscriber;
-        synchronized (subscriptions) {
-            subscriber = subscriptions.get(user);
-            if (subscriber == null) {
-                throw new ClientErrorException(Response.Status.NOT_FOUND);
+    @Override
+    public long[] post(List<byte[]> payloads, String key, Durability durability) throws IOException {
+        long[] lsns = dataStore.post(payloads, durability == null ? config.durability : durability);
+        posted();
+        return lsns;
+    }
+
+    @Override
+    public Durability getDurability(Durability requested) {
+        return requested == null ? config.durability : requested;
+    }
+
+    private void posted() {
+        if (subscriptions.isEmpty()) {
+            // nobody will ever read this
+            maybeRequestGC();
+        }
+
+        List<Runnable> wakeup;
+        synchronized (waiters) {
+            if (waiters.isEmpty()) {
+                return;
+            }
+            wakeup = new ArrayList<>(waiters);
+            waiters.clear();
+        }
+        wakeup.forEach(Runnable::run);
+    }
+
+    /**
+     * Registers waiter to be run once the next message is posted. Waiters
+     * are run on the publisher's thread and are forgotten once they run,
+     * so they should hand off any real work and register again if they
+     * still want to wait. Registering the same waiter twice is a no-op.
+     *
+     * Returns false if there are already too many waiters.
+     */
+    @Override
+    public boolean await(Runnable waiter) {
+        synchronized (waiters) {
+            if (waiters.contains(waiter)) {
+                return true;
+            }
+            if (waiters.size() >= config.maxWaiters) {
+                return false;
             }
+            waiters.add(waiter);
+            return true;
+        }
+    }
+
+    @Override
+    public void cancel(Runnable waiter) {
+        synchronized (waiters) {
+            waiters.remove(waiter);
+        }
+    }
+
+    public int getWaiterCount() {
+        synchronized (waiters) {
+            return waiters.size();
+        }
+    }
+
+    /**
+     * Returns the LSN after the last message that was written out, which is
+     * where the next one goes unless a batch is being written.
+     */
+    public long getNextLSN() {
+        return dataStore.getCommittedLSN();
+    }
+
+    long getFirstLSN() {
+        return dataStore.getFirstLSN();
+    }
+
+    @Override
+    public void appendStats(StringBuilder stats) {
+        stats.append("nextLSN ").append(getNextLSN()).append('\n');
+        stats.append("waiters ").append(getWaiterCount()).append('\n');
+        stats.append("firstLSN ").append(getFirstLSN()).append('\n');
+        stats.append("coalescedReads ").append(getCoalescedReads()).append('\n');
+        stats.append("leases ").append(getLeaseCount()).append('\n');
+        stats.append("redeliveries ").append(getRedeliveries()).append('\n');
+        TailCache cache = dataStore.getTailCache();
+        if (cache != null) {
+            TailCache.appendStats(stats, Collections.singletonList(cache));
+        }
+    }
+
+    long getCoalescedReads() {
+        return coalescedReads.sum();
+    }
+
+    int getLeaseCount() {
+        int leases = 0;
+        for (Subscriber s : subscriptions.values()) {
+            leases += s.leases.size();
+        }
+        return leases;
+    }
+
+    long getRedeliveries() {
+        return redeliveries.sum();
+    }
+
+    /**
+     * Writes the metrics of this queue, labels identify the topic.
+     */
+    @Override
+    public void appendMetrics(MetricsWriter out, String labels) {
+        metrics.write(out, labels);
+        long nextLSN = getNextLSN();
+        out.gauge("queue_next_lsn", "The LSN the next message will be written at.", labels, nextLSN);
+        out.gauge("queue_chunks", "Chunks on disk.", labels, dataStore.getChunkCount());
+        out.gauge("queue_subscribers", "Subscribers.", labels, subscriptions.size());
+        for (Subscriber s : subscriptions.values()) {
+            out.gauge("queue_subscriber_lag_bytes", "How far behind the log a subscriber is.",
+                    MetricsWriter.join(labels, MetricsWriter.label("subscriber", s.name)),
+                    Math.max(0, nextLSN - s.nextLSN.get()));
         }
+    }
+
+    TailCache getTailCache() {
+        return dataStore.getTailCache();
+    }
 
-        DataStore.Message m = dataStore.get(subscriber.nextLSN);
+    Set<String> getSubscribers() {
+        return subscriptions.keySet();
+    }
+
+    @Override
+    public DataStore.Message get(String user) throws IOException {
+        long start = System.nanoTime();
+        DataStore.Message m = take(getSubscriber(user));
+        metrics.consumeLatency.record(System.nanoTime() - start);
         if (m.in != null) {
-            if (m.nextLSN <= subscriber.nextLSN) {
-                throw new StreamCorruptedException(m.nextLSN + " <= " + subscriber.nextLSN);
-            }
-
-            synchronized (subscriber) {
-                Path p = subscriptionDir.resolve(user);
-                try (FileChannel out = FileChannel.open(p,
-                        StandardOpenOption.WRITE,
-                        StandardOpenOption.TRUNCATE_EXISTING)) {
-                    ByteBuffer buf = ByteBuffer.allocate(8).putLong(m.nextLSN);
-                    buf.position(0);
-                    out.write(buf);
-                    out.force(true);
+            metrics.consumedMessages.increment();
+            metrics.consumedBytes.add(m.size);
+        }
+        return m;
+    }
+
+    private DataStore.Message take(Subscriber subscriber) throws IOException {
+        while (true) {
+            long lsn = subscriber.nextLSN.get();
+            DataStore.Message m = read(lsn);
+            if (m.in == null) {
+                if (fastForward(subscriber, lsn)) {
+                    continue;
                 }
-                subscriber.nextLSN = m.nextLSN;
+                return m;
+            }
+            if (m.nextLSN <= lsn) {
+                m.in.close();
+                throw new StreamCorruptedException(m.nextLSN + " <= " + lsn);
+            }
+
+            if (subscriber.nextLSN.compareAndSet(lsn, m.nextLSN)) {
+                commit(subscriber, 1);
+                return withSkipped(subscriber, m);
             }
+            m.in.close();
         }
+    }
 
-        return m;
+    /**
+     * Retrieves up to max consecutive messages, stopping before the one
+     * that would take the total payload over maxBytes. The first message
+     * is always returned regardless of its size. The subscription is only
+     * advanced once, past the last message returned.
+     */
+    @Override
+    public List<DataStore.Message> get(String user, int max, long maxBytes) throws IOException {
+        return get(user, max, maxBytes, true);
     }
 
-    public void unsubscribe(String user) throws IOException {
-        synchronized (subscriptions) {
-            Path p = subscriptionDir.resolve(user);
-            if (!Files.deleteIfExists(p)) {
-                throw new ClientErrorException(Response.Status.NOT_FOUND);
+    /**
+     * Same as get(user, max, maxBytes), except that unless oversized is set
+     * a first message bigger than maxBytes is held back too.
+     */
+    List<DataStore.Message> get(String user, int max, long maxBytes, boolean oversized) throws IOException {
+        long start = System.nanoTime();
+        List<DataStore.Message> messages = take(getSubscriber(user), max, maxBytes, oversized);
+        metrics.consumeLatency.record(System.nanoTime() - start);
+        metrics.consumedMessages.add(messages.size());
+        for (DataStore.Message m : messages) {
+            metrics.consumedBytes.add(m.size);
+        }
+        return messages;
+    }
+
+    private List<DataStore.Message> take(Subscriber subscriber, int max, long maxBytes, boolean oversized)
+            throws IOException {
+        while (true) {
+            long startLSN = subscriber.nextLSN.get();
+            List<DataStore.Message> messages = read(startLSN, max, maxBytes, oversized);
+            if (messages.isEmpty()) {
+                if (fastForward(subscriber, startLSN)) {
+                    continue;
+                }
+                return messages;
+            }
+            if (subscriber.nextLSN.compareAndSet(startLSN, messages.get(messages.size() - 1).nextLSN)) {
+                commit(subscriber, messages.size());
+                messages.set(0, withSkipped(subscriber, messages.get(0)));
+                return messages;
+            }
+            for (DataStore.Message m : messages) {
+                m.in.close();
             }
-            subscriptions.remove(user);
         }
     }
 
-    void spawnGCThread() {
-        shutdown = false;
-        gcThread.start();
+    /**
+     * Hands out a lease that timed out if there is one, otherwise leases up
+     * to max messages at the subscriber's LSN. A redelivered lease has the
+     * same messages as before regardless of max and maxBytes. The lease id
+     * is the LSN of its first message.
+     */
+    @Override
+    public Lease lease(String user, int max, long maxBytes, long timeoutMs) throws IOException {
+        long start = System.nanoTime();
+        Subscriber subscriber = getSubscriber(user);
+        Lease lease = redeliver(subscriber, start + timeoutMs * 1_000_000);
+        if (lease == null) {
+            lease = lease(subscriber, max, maxBytes, start + timeoutMs * 1_000_000);
+        }
+        metrics.consumeLatency.record(System.nanoTime() - start);
+        if (lease != null) {
+            metrics.consumedMessages.add(lease.messages.size());
+            for (DataStore.Message m : lease.messages) {
+                metrics.consumedBytes.add(m.size);
+            }
+        }
+        return lease;
     }
 
-    void stop() {
-        shutdown = true;
+    private Lease redeliver(Subscriber subscriber, long deadline) throws IOException {
+        long now = System.nanoTime();
+        for (Map.Entry<Long, Range> e : subscriber.leases.entrySet()) {
+            Range range = e.getValue();
+            long expires = range.deadline.get();
+            if (expires == Range.PENDING || expires - now > 0 || !range.deadline.compareAndSet(expires, deadline)) {
+                continue;
+            }
+            long lsn = e.getKey();
+            List<DataStore.Message> messages = read(lsn, range.count, Long.MAX_VALUE, true);
+            if (messages.isEmpty()) {
+                // past retention, nothing left to redeliver
+                if (subscriber.leases.remove(lsn, range)) {
+                    logger.warn("{} dropped lease {} to {}, the messages are past retention",
+                            subscriber.name, lsn, range.endLSN);
+                }
+                continue;
+            }
+            redeliveries.increment();
+            return new Lease(Long.toString(lsn), messages, true);
+        }
+        return null;
+    }
+
+    private Lease lease(Subscriber subscriber, int max, long maxBytes, long deadline) throws IOException {
+        while (true) {
+            long startLSN = subscriber.nextLSN.get();
+            List<DataStore.Message> messages = read(startLSN, max, maxBytes, true);
+            if (messages.isEmpty()) {
+                if (fastForward(subscriber, startLSN)) {
+                    continue;
+                }
+                return null;
+            }
+            long endLSN = messages.get(messages.size() - 1).nextLSN;
+            // the lease goes in before the LSN moves past it so a checkpoint
+            // in between still sees one or the other
+            Range range = new Range(endLSN, messages.size());
+            if (subscriber.leases.putIfAbsent(startLSN, range) == null) {
+                if (subscriber.nextLSN.compareAndSet(startLSN, endLSN)) {
+                    range.deadline.set(deadline);
+                    messages.set(0, withSkipped(subscriber, messages.get(0)));
+                    return new Lease(Long.toString(startLSN), messages, false);
+                }
+                subscriber.leases.remove(startLSN, range);
+                // startLSN was stale, if a checkpoint saw the lease in the
+                // meantime it stopped there and nothing else will move it
+                boolean heldBack;
+                synchronized (subscriber) {
+                    heldBack = subscriber.checkpointLSN == startLSN;
+                }
+                if (heldBack) {
+                    checkpoint(subscriber);
+                }
+            }
+            for (DataStore.Message m : messages) {
+                m.in.close();
+            }
+        }
+    }
+
+    /**
+     * The messages of the lease count as consumed for the checkpoint policy
+     * only now.
+     */
+    @Override
+    public void ack(String user, String id) {
+        Subscriber subscriber = getSubscriber(user);
+        Range range;
         try {
-            gcThread.interrupt();
-            gcThread.join();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            range = subscriber.leases.remove(Long.parseLong(id));
+        } catch (NumberFormatException e) {
+            range = null;
+        }
+        if (range == null) {
+            throw new ClientErrorException(Response.Status.NOT_FOUND);
         }
+        commit(subscriber, range.count);
     }
 
-    synchronized void gcNow() {
-        long curMinLSN = dataStore.getNextLSN();
+    private List<DataStore.Message> read(long lsn, int max, long maxBytes, boolean oversized) throws IOException {
+        List<DataStore.Message> messages = new ArrayList<>();
+        long bytes = 0;
+        try {
+            while (messages.size() < max) {
+                DataStore.Message m = read(lsn);
+                if (m.in == null) {
+                    break;
+                }
+                if ((!messages.isEmpty() || !oversized) && bytes + m.size > maxBytes) {
+                    m.in.close();
+                    break;
+                }
+                messages.add(m);
+                if (m.nextLSN <= lsn) {
+                    throw new StreamCorruptedException(m.nextLSN + " <= " + lsn);
+                }
+                lsn = m.nextLSN;
+                bytes += m.size;
+            }
+        } catch (IOException | RuntimeException e) {
+            for (DataStore.Message m : messages) {
+                m.in.close();
+            }
+            throw e;
+        }
+
+        return messages;
+    }
 
-        synchronized (subscriptions) {
-            for (Subscriber s : subscriptions.values()) {
-                synchronized (s) {
-                    if (s.nextLSN < curMinLSN) {
-                        curMinLSN = s.nextLSN;
-                    }
+    /**
+     * Returns the message at lsn, sharing the read with anyone else that's
+     * reading lsn right now. The payload is only copied to the heap if
+     * someone is waiting for it, otherwise it's streamed.
+     */
+    private DataStore.Message read(long lsn) throws IOException {
+        SharedRead read = new SharedRead();
+        SharedRead inflight = reads.compute(lsn, (k, r) -> {
+            if (r == null) {
+                return read;
+            }
+            r.waiters.incrementAndGet();
+            return r;
+        });
+        if (inflight != read) {
+            DataStore.Message m;
+            try {
+                m = inflight.result.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                throw Throwables.propagate(e.getCause());
+            }
+            if (m == null) {
+                // not shared after all
+                return dataStore.get(lsn);
+            }
+            coalescedReads.increment();
+            return m.in == null ? m : new DataStore.Message(m.data, m.nextLSN);
+        }
+
+        try {
+            DataStore.Message m = dataStore.get(lsn);
+            // nobody can start waiting once it's out of the map
+            reads.remove(lsn, read);
+            if (m.in != null && m.data == null) {
+                if (read.waiters.get() == 0 || m.size > MAX_SHARED_BYTES) {
+                    read.result.complete(null);
+                    return m;
                 }
+                byte[] payload = new byte[(int) m.size];
+                try {
+                    ByteStreams.readFully(m.in, payload);
+                } finally {
+                    m.in.close();
+                }
+                m = new DataStore.Message(ByteBuffer.wrap(payload), m.nextLSN);
             }
+            read.result.complete(m);
+            return m;
+        } catch (IOException | RuntimeException e) {
+            read.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            reads.remove(lsn, read);
+        }
+    }
+
+    /**
+     * Called when there's nothing at lsn, moves the subscriber to the oldest
+     * message if retention deleted lsn. Returns false if lsn is still
+     * around.
+     */
+    private boolean fastForward(Subscriber subscriber, long lsn) {
+        long firstLSN = dataStore.getFirstLSN();
+        if (lsn >= firstLSN) {
+            return false;
+        }
+        if (subscriber.nextLSN.compareAndSet(lsn, firstLSN)) {
+            subscriber.skipped.addAndGet(firstLSN - lsn);
+            logger.warn("{} skipped from {} to {}, the messages in between are past retention",
+                    subscriber.name, lsn, firstLSN);
+        }
+        return true;
+    }
+
+    private static DataStore.Message withSkipped(Subscriber subscriber, DataStore.Message m) {
+        if (subscriber.skipped.get() == 0) {
+            return m;
+        }
+        return m.withSkipped(subscriber.skipped.getAndSet(0));
+    }
+
+    private Subscriber getSubscriber(String user) {
+        Subscriber subscriber = subscriptions.get(user);
+        if (subscriber == null) {
+            throw new ClientErrorException(Response.Status.NOT_FOUND);
+        }
+        return subscriber;
+    }
+
+    /**
+     * Called after nmessages were claimed, checkpoints if the policy says so.
+     */
+    private void commit(Subscriber subscriber, int nmessages) {
+        if (config.checkpointEvery != 0 &&
+                subscriber.uncheckpointed.addAndGet(nmessages) >= config.checkpointEvery) {
+            checkpoint(subscriber);
+        }
+    }
+
+    private void checkpoint(Subscriber subscriber) {
+        if (stage(subscriber)) {
+            offsets.force();
+            maybeRequestGC();
+        }
+    }
+
+    /**
+     * Copies the subscriber's LSN to the offset table, returns true if
+     * there was anything to copy.
+     */
+    private boolean stage(Subscriber subscriber) {
+        synchronized (subscriber) {
+            // someone may have checkpointed a later LSN already
+            long lsn = subscriber.nextLSN.get();
+            // unacknowledged leases are read after the LSN, a lease is
+            // added before the LSN moves past it
+            Map.Entry<Long, Range> lease = subscriber.leases.firstEntry();
+            if (lease != null) {
+                lsn = Math.min(lsn, lease.getKey());
+            }
+            if (subscriber.removed || lsn <= subscriber.checkpointLSN) {
+                return false;
+            }
+            subscriber.uncheckpointed.set(0);
+            offsets.set(subscriber.slot, lsn);
+            subscriber.checkpointLSN = lsn;
+            return true;
+        }
+    }
+
+    void checkpointAll() {
+        boolean dirty = false;
+        for (Subscriber s : subscriptions.values()) {
+            dirty |= stage(s);
+        }
+        if (dirty) {
+            offsets.force();
+            maybeRequestGC();
+        }
+    }
+
+    @Override
+    public void unsubscribe(String user) throws IOException {
+        synchronized (offsets) {
+            Subscriber s = subscriptions.remove(user);
+            if (s == null) {
+                throw new ClientErrorException(Response.Status.NOT_FOUND);
+            }
+            synchronized (s) {
+                s.removed = true;
+                offsets.free(user);
+            }
+        }
+        maybeRequestGC();
+    }
+
+    private long getGCLSN() {
+        // the table has the checkpointed LSNs, which is where subscribers
+        // restart from after a crash
+        return Math.min(dataStore.getCommittedLSN(), offsets.min());
+    }
+
+    /**
+     * Asks for GC if there may be a chunk to delete since the last GC.
+     */
+    private void maybeRequestGC() {
+        GCScheduler scheduler = gcScheduler;
+        if (scheduler != null && dataStore.getBaseLSN(getGCLSN()) > dataStore.getBaseLSN(minLSN)) {
+            scheduler.requestGC(this);
+        }
+    }
+
+    @Override
+    public void start(GCScheduler scheduler) {
+        gcScheduler = requireNonNull(scheduler);
+        if (config.checkpointIntervalMs != 0) {
+            checkpointer = scheduler.schedule(this::checkpointAll, config.checkpointIntervalMs);
+        }
+        if (config.retentionBytes != 0 || config.retentionMs != 0) {
+            // retention doesn't depend on subscribers so nothing else will
+            // ask for GC
+            retention = scheduler.schedule(() -> scheduler.requestGC(this), RETENTION_CHECK_MS);
+        }
+        // publishes can ask for batched durability whatever the topic's is
+        dataStore.startSyncing(() -> scheduler.execute(this::sync, config.durabilityIntervalMs));
+        dataStore.startPreallocating(scheduler::execute);
+        // whatever was left over from before the restart
+        scheduler.requestGC(this);
+    }
+
+    @Override
+    public void stop() {
+        if (gcScheduler != null) {
+            gcScheduler.cancel(this);
+        }
+        if (checkpointer != null) {
+            checkpointer.cancel(false);
+        }
+        if (retention != null) {
+            retention.cancel(false);
+        }
+        checkpointAll();
+        try {
+            offsets.close();
+            dataStore.close();
+        } catch (IOException e) {
+            logger.warn("unable to close", e);
+        }
+    }
+
+    private void sync() {
+        try {
+            dataStore.sync();
+        } catch (IOException e) {
+            logger.error("unable to sync " + dataDir, e);
+        }
+    }
+
+    /**
+     * Deletes the chunks no subscriber needs anymore, or that are past
+     * retention, returns how many were deleted.
+     */
+    synchronized int gcNow() {
+        long start = System.nanoTime();
+        long curMinLSN = getGCLSN();
+        if (config.retentionBytes != 0 || config.retentionMs != 0) {
+            curMinLSN = Math.max(curMinLSN,
+                    dataStore.getRetentionLSN(config.retentionBytes, config.retentionMs));
         }
 
         logger.info("GC up to {}", curMinLSN);
+        int deleted = 0;
         if (curMinLSN > minLSN) {
-            dataStore.gc(curMinLSN);
+            deleted = dataStore.gc(curMinLSN);
             minLSN = curMinLSN;
         }
+        metrics.gcLatency.record(System.nanoTime() - start);
+        return deleted;
     }
 
     static class Subscriber {
         final String name;
-        long nextLSN;
+        final int slot;
+        final AtomicLong nextLSN;
+        final AtomicInteger uncheckpointed = new AtomicInteger();
+        // LSNs lost to retention that haven't been reported yet
+        final AtomicLong skipped = new AtomicLong();
+        // unacknowledged leases by the LSN of their first message
+        final ConcurrentSkipListMap<Long, Range> leases = new ConcurrentSkipListMap<>();
+        long checkpointLSN; // guarded by this
+        boolean removed; // guarded by this
 
-        Subscriber(String name, long nextLSN) {
+        Subscriber(String name, int slot, long nextLSN) {
             this.name = requireNonNull(name);
-            this.nextLSN = nextLSN;
+            this.slot = slot;
+            this.nextLSN = new AtomicLong(nextLSN);
+            this.checkpointLSN = nextLSN;
         }
     }
+
+    private static class Range {
+        // until the lease is taken nobody else can have it
+        static final long PENDING = Long.MAX_VALUE;
+        final long endLSN;
+        final int count;
+        // System.nanoTime() after which the lease can be handed out again
+        final AtomicLong deadline = new AtomicLong(PENDING);
+
+        Range(long endLSN, int count) {
+            this.endLSN = endLSN;
+            this.count = count;
+        }
+    }
+
+    private static class SharedRead {
+        final CompletableFuture<DataStore.Message> result = new CompletableFuture<>();
+        // readers that joined, only changes while it's in reads
+        final AtomicInteger waiters = new AtomicInteger();
+    }
 }
@@ -0,0 +1,169 @@
+package us.hxbc.clusterhq.queue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * TailCache keeps the payloads of the most recently written messages in an
+ * off heap ring, so subscribers that keep up with the publishers don't have
+ * to go back to the chunk files.
+ *
+ * There's a single writer, the flusher, which appends every message it
+ * wrote and overwrites the oldest ones once the ring is full. Readers copy
+ * a payload out of the ring without taking a lock and check afterwards
+ * that nothing was written in the meantime, in which case they copy again
+ * under the read lock.
+ */
+class TailCache {
+    private final ByteBuffer ring;
+    private final long maxMessageBytes;
+    private final StampedLock lock = new StampedLock();
+    private final Map<Long, Entry> index = new ConcurrentHashMap<>();
+    private final ArrayDeque<Long> order = new ArrayDeque<>(); // guarded by the write lock
+    private long head; // how many bytes were ever written, guarded by the write lock
+    private long used; // guarded by the write lock
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a cache of capacity bytes that only takes messages smaller
+     * than maxMessageBytes.
+     */
+    TailCache(long capacity, long maxMessageBytes) {
+        if (capacity <= 0 || capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("invalid capacity " + capacity);
+        }
+        ring = ByteBuffer.allocateDirect((int) capacity);
+        this.maxMessageBytes = Math.min(capacity + 1, maxMessageBytes);
+    }
+
+    /**
+     * Appends messages, lsns has the LSN of each payload. Payloads that
+     * are too big are skipped.
+     */
+    void put(List<Long> lsns, List<byte[]> payloads) {
+        long stamp = lock.writeLock();
+        try {
+            for (int i = 0; i < lsns.size(); i++) {
+                byte[] payload = payloads.get(i);
+                if (payload.length >= maxMessageBytes) {
+                    continue;
+                }
+                long end = head + payload.length;
+                while (!order.isEmpty()) {
+                    Entry oldest = index.get(order.peekFirst());
+                    if (oldest.position >= end - ring.capacity()) {
+                        break;
+                    }
+                    index.remove(order.removeFirst());
+                    used -= oldest.size;
+                }
+
+                copy(ByteBuffer.wrap(payload), head, true);
+                index.put(lsns.get(i), new Entry(head, payload.length));
+                order.addLast(lsns.get(i));
+                head = end;
+                used += payload.length;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns a copy of the payload at lsn, or null if it's not cached.
+     */
+    byte[] get(long lsn) {
+        // the stamp has to come first, a put() after the lookup could evict
+        // the entry and reuse its bytes without validate() noticing
+        long stamp = lock.tryOptimisticRead();
+        Entry e = index.get(lsn);
+        if (e == null) {
+            misses.increment();
+            return null;
+        }
+
+        byte[] payload = new byte[e.size];
+        if (stamp != 0) {
+            copy(ByteBuffer.wrap(payload), e.position, false);
+        }
+        if (stamp == 0 || !lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                if (index.get(lsn) != e) {
+                    // overwritten while we were copying
+                    misses.increment();
+                    return null;
+                }
+                copy(ByteBuffer.wrap(payload), e.position, false);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        hits.increment();
+        return payload;
+    }
+
+    /**
+     * Copies between buf and the ring starting at position, which wraps
+     * around.
+     */
+    private void copy(ByteBuffer buf, long position, boolean toRing) {
+        ByteBuffer r = ring.duplicate();
+        int offset = (int) (position % ring.capacity());
+        while (buf.hasRemaining()) {
+            int n = Math.min(buf.remaining(), ring.capacity() - offset);
+            r.limit(offset + n).position(offset);
+            if (toRing) {
+                ByteBuffer src = buf.duplicate();
+                src.limit(src.position() + n);
+                r.put(src);
+                buf.position(buf.position() + n);
+            } else {
+                buf.put(r);
+            }
+            offset = 0;
+        }
+    }
+
+    /**
+     * Appends the combined stats of caches, which may be empty.
+     */
+    static void appendStats(StringBuilder stats, Iterable<TailCache> caches) {
+        long hits = 0, misses = 0, count = 0, used = 0, capacity = 0;
+        for (TailCache c : caches) {
+            hits += c.hits.sum();
+            misses += c.misses.sum();
+            long stamp = c.lock.readLock();
+            try {
+                count += c.order.size();
+                used += c.used;
+            } finally {
+                c.lock.unlockRead(stamp);
+            }
+            capacity += c.ring.capacity();
+        }
+        stats.append("tailCache.hits ").append(hits).append('\n');
+        stats.append("tailCache.misses ").append(misses).append('\n');
+        stats.append("tailCache.hitRatio ")
+                .append(hits + misses == 0 ? 0 : (double) hits / (hits + misses)).append('\n');
+        stats.append("tailCache.messages ").append(count).append('\n');
+        stats.append("tailCache.usedBytes ").append(used).append('\n');
+        stats.append("tailCache.capacityBytes ").append(capacity).append('\n');
+    }
+
+    private static class Entry {
+        final long position;
+        final int size;
+
+        Entry(long position, int size) {
+            this.position = position;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package us.hxbc.clusterhq.queue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Topic is what the API publishes to and consumes from. A plain topic is a
+ * single Queue, a partitioned topic spreads its messages over several.
+ */
+public interface Topic {
+    void subscribe(String user) throws IOException;
+
+    void unsubscribe(String user) throws IOException;
+
+    /**
+     * Appends a message. key picks the partition of a partitioned topic,
+     * messages with the same key are delivered in order. A null key means
+     * any partition will do.
+     */
+    void post(InputStream data, String key) throws IOException;
+
+    /**
+     * Appends payloads in order, as if they were posted one after another
+     * with the same key, but they are made durable together and either all
+     * or none of them are delivered. Returns the LSN of each, on a
+     * partitioned topic in the partition the batch went to.
+     *
+     * A null durability means the topic's.
+     */
+    long[] post(List<byte[]> payloads, String key, Durability durability) throws IOException;
+
+    /**
+     * Returns the durability a publish gets if it asks for requested, which
+     * is null if it didn't ask.
+     */
+    Durability getDurability(Durability requested);
+
+    DataStore.Message get(String user) throws IOException;
+
+    List<DataStore.Message> get(String user, int max, long maxBytes) throws IOException;
+
+    /**
+     * Like get(user, max, maxBytes), except that the subscription is a
+     * consumer group: the messages are leased to the caller for timeoutMs
+     * and handed out again if they aren't acknowledged with ack() by then.
+     * Returns null if there's nothing to lease.
+     */
+    Lease lease(String user, int max, long maxBytes, long timeoutMs) throws IOException;
+
+    /**
+     * Acknowledges the lease with id, throws ClientErrorException if there's
+     * no such lease.
+     */
+    void ack(String user, String id) throws IOException;
+
+    /**
+     * See Queue.await().
+     */
+    boolean await(Runnable waiter);
+
+    void cancel(Runnable waiter);
+
+    /**
+     * Appends the stats of this topic, one "name value" pair per line.
+     */
+    void appendStats(StringBuilder stats);
+
+    /**
+     * Writes the Prometheus metrics of this topic, every sample gets labels.
+     */
+    void appendMetrics(MetricsWriter out, String labels);
+
+    void start(GCScheduler scheduler);
+
+    void stop();
+}
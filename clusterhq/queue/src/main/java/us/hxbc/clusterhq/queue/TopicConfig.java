@@ -0,0 +1,193 @@
+package us.hxbc.clusterhq.queue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * TopicConfig holds the tunables of a topic. They are read from a java
+ * properties file called "config" in the topic directory, any key that's
+ * missing falls back to its default.
+ *
+ * partitions: how many independent logs the topic is split into, each
+ * with its own data/N and subscriptions/N directories. 1 keeps
+ * everything directly in data and subscriptions. Partitions can be added
+ * later but not removed.
+ *
+ * chunk.size: the size of the files the log is split into, a power of 2.
+ * 0 means the server's default. It's written to the config file the first
+ * time the topic is opened since it can't change once there's data.
+ *
+ * chunk.preallocate: write out the next chunk in the background before
+ * it's needed. It costs an extra write of every chunk, so it only pays off
+ * with big chunks.
+ *
+ * groupCommit.maxDelayMs: how long a publisher waits for others to join its
+ * batch before the batch is flushed. 0 means flush as soon as the previous
+ * flush is done, which still lets everyone who arrived during that flush
+ * share the next fsync.
+ *
+ * groupCommit.maxBytes: a batch is flushed without waiting for
+ * groupCommit.maxDelayMs once it holds this many bytes.
+ *
+ * durability: always to sync every batch before publishers return, batched
+ * to sync in the background, or os to leave it to the page cache. A
+ * publish can ask for a different level.
+ *
+ * durability.intervalMs: how often batched writes are synced.
+ *
+ * storage: disk, or memory for a topic that only lives in memory and is
+ * gone after a restart, see MemoryTopic. The other settings about the log
+ * don't apply to it. To have one, write this to the config file before
+ * the topic is first used.
+ *
+ * memory.capacity: how many messages a memory topic holds, a power of 2.
+ *
+ * memory.overflow: overwrite the oldest messages once a memory topic is
+ * full, or drop new ones as long as a subscriber still needs the oldest.
+ *
+ * readCache.channels: how many chunks readers keep open.
+ *
+ * readCache.mmap: map chunks that are behind the tail and hand out
+ * messages as slices of the mapping.
+ *
+ * readCache.mapMessageBytes: messages at least this big are mapped on their
+ * own and written to the socket straight from the page cache, 0 to always
+ * copy them.
+ *
+ * readCache.tailBytes: keep the most recently written messages in an off
+ * heap ring this big, so subscribers that keep up are served from memory.
+ * Messages of readCache.mapMessageBytes or more aren't kept. 0 disables it.
+ *
+ * longPoll.maxWaiters: how many GETs can be parked waiting for a message.
+ *
+ * checkpoint.every: checkpoint a subscriber's LSN after this many messages,
+ * 0 to only checkpoint on a timer.
+ *
+ * checkpoint.intervalMs: checkpoint all subscribers in the background this
+ * often, 0 to disable.
+ *
+ * retention.bytes: delete the oldest chunks once the log is bigger than
+ * this, even if they haven't been consumed. 0 means no limit.
+ *
+ * retention.ms: delete chunks that were last written longer ago than this,
+ * even if they haven't been consumed. 0 means no limit.
+ */
+public class TopicConfig {
+    static final String FILE_NAME = "config";
+    static final TopicConfig DEFAULT = new TopicConfig(new Properties());
+
+    final int partitions;
+    final long chunkSize;
+    final boolean preallocate;
+    final long maxBatchDelayMs;
+    final long maxBatchBytes;
+    final Durability durability;
+    final long durabilityIntervalMs;
+    final boolean memory;
+    final int memoryCapacity;
+    final boolean dropOnOverflow;
+    final int readChannels;
+    final boolean mmapReads;
+    final long mapMessageBytes;
+    final long tailCacheBytes;
+    final int maxWaiters;
+    final int checkpointEvery;
+    final long checkpointIntervalMs;
+    final long retentionBytes;
+    final long retentionMs;
+
+    TopicConfig(Properties props) {
+        partitions = (int) getLong(props, "partitions", 1);
+        chunkSize = getLong(props, "chunk.size", 0);
+        preallocate = Boolean.parseBoolean(props.getProperty("chunk.preallocate", "false").trim());
+        maxBatchDelayMs = getLong(props, "groupCommit.maxDelayMs", 0);
+        maxBatchBytes = getLong(props, "groupCommit.maxBytes", 1024 * 1024);
+        durability = Durability.parse(props.getProperty("durability", "always"));
+        durabilityIntervalMs = getLong(props, "durability.intervalMs", 1000);
+        memory = getChoice(props, "storage", "disk", "memory");
+        memoryCapacity = (int) getLong(props, "memory.capacity", 1024);
+        dropOnOverflow = getChoice(props, "memory.overflow", "overwrite", "drop");
+        readChannels = (int) getLong(props, "readCache.channels", 16);
+        mmapReads = Boolean.parseBoolean(props.getProperty("readCache.mmap", "false").trim());
+        mapMessageBytes = getLong(props, "readCache.mapMessageBytes", 64 * 1024);
+        tailCacheBytes = getLong(props, "readCache.tailBytes", 0);
+        maxWaiters = (int) getLong(props, "longPoll.maxWaiters", 1024);
+        checkpointEvery = (int) getLong(props, "checkpoint.every", 1);
+        checkpointIntervalMs = getLong(props, "checkpoint.intervalMs", 0);
+        retentionBytes = getLong(props, "retention.bytes", 0);
+        retentionMs = getLong(props, "retention.ms", 0);
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("partitions " + partitions + " <= 0");
+        }
+        if (chunkSize < 0 || (chunkSize & (chunkSize - 1)) != 0) {
+            throw new IllegalArgumentException("chunk.size " + chunkSize + " is not a power of 2");
+        }
+        if (maxBatchDelayMs < 0) {
+            throw new IllegalArgumentException("groupCommit.maxDelayMs " + maxBatchDelayMs + " < 0");
+        }
+        if (durabilityIntervalMs <= 0) {
+            throw new IllegalArgumentException("durability.intervalMs " + durabilityIntervalMs + " <= 0");
+        }
+        if (memoryCapacity <= 0 || (memoryCapacity & (memoryCapacity - 1)) != 0) {
+            throw new IllegalArgumentException("memory.capacity " + memoryCapacity + " is not a power of 2");
+        }
+        if (mapMessageBytes < 0) {
+            throw new IllegalArgumentException("readCache.mapMessageBytes " + mapMessageBytes + " < 0");
+        }
+        if (tailCacheBytes < 0 || tailCacheBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("readCache.tailBytes " + tailCacheBytes + " is out of range");
+        }
+        if (checkpointEvery < 0 || checkpointIntervalMs < 0) {
+            throw new IllegalArgumentException("negative checkpoint policy");
+        }
+        if (checkpointEvery == 0 && checkpointIntervalMs == 0) {
+            throw new IllegalArgumentException("checkpoint.every and checkpoint.intervalMs can't both be 0");
+        }
+        if (retentionBytes < 0 || retentionMs < 0) {
+            throw new IllegalArgumentException("negative retention policy");
+        }
+    }
+
+    static TopicConfig load(Path dir) throws IOException {
+        Properties props = new Properties();
+        Path p = dir.resolve(FILE_NAME);
+        if (Files.exists(p)) {
+            try (Reader r = Files.newBufferedReader(p)) {
+                props.load(r);
+            }
+        }
+        return new TopicConfig(props);
+    }
+
+    /**
+     * Adds key to the config file in dir, creating the file if needed.
+     */
+    static void append(Path dir, String key, String value) throws IOException {
+        // the newline in front is in case the file doesn't end with one
+        String line = "\n" + key + "=" + value + "\n";
+        Files.write(dir.resolve(FILE_NAME), line.getBytes(StandardCharsets.ISO_8859_1),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Returns whether key is the other value rather than the default one.
+     */
+    private static boolean getChoice(Properties props, String key, String defaultValue, String other) {
+        String value = props.getProperty(key, defaultValue).trim();
+        if (!value.equals(defaultValue) && !value.equals(other)) {
+            throw new IllegalArgumentException(key + " " + value + " is neither " + defaultValue +
+                    " nor " + other);
+        }
+        return value.equals(other);
+    }
+
+    private static long getLong(Properties props, String key, long defaultValue) {
+        String v = props.getProperty(key);
+        return v == null ? defaultValue : Long.parseLong(v.trim());
+    }
+}
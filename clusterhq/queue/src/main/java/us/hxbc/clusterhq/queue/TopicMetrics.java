@@ -0,0 +1,38 @@
+package us.hxbc.clusterhq.queue;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TopicMetrics are the counters and latency histograms of one Queue and
+ * its DataStore. They are all striped or atomic so recording doesn't take
+ * any lock.
+ */
+class TopicMetrics {
+    final LongAdder publishedMessages = new LongAdder();
+    final LongAdder publishedBytes = new LongAdder();
+    final Histogram publishLatency = new Histogram();
+    final Histogram fsyncLatency = new Histogram();
+    final Histogram readLatency = new Histogram();
+    final LongAdder consumedMessages = new LongAdder();
+    final LongAdder consumedBytes = new LongAdder();
+    final Histogram consumeLatency = new Histogram();
+    final Histogram gcLatency = new Histogram();
+    final LongAdder gcChunks = new LongAdder();
+    final LongAdder gcBytes = new LongAdder();
+
+    void write(MetricsWriter out, String labels) {
+        out.counter("queue_published_messages_total", "Messages published.", labels, publishedMessages.sum());
+        out.counter("queue_published_bytes_total", "Payload bytes published.", labels, publishedBytes.sum());
+        out.histogram("queue_publish_seconds", "Time until a publish is durable.", labels, publishLatency);
+        out.histogram("queue_fsync_seconds", "Time to force a chunk to disk.", labels, fsyncLatency);
+        out.histogram("queue_read_seconds", "Time to look up a message in the log.", labels, readLatency);
+        out.counter("queue_consumed_messages_total", "Messages handed to subscribers.", labels,
+                consumedMessages.sum());
+        out.counter("queue_consumed_bytes_total", "Payload bytes handed to subscribers.", labels,
+                consumedBytes.sum());
+        out.histogram("queue_consume_seconds", "Time to get messages for a subscriber.", labels, consumeLatency);
+        out.histogram("queue_gc_seconds", "Time spent in gc.", labels, gcLatency);
+        out.counter("queue_gc_chunks_total", "Chunks deleted by gc.", labels, gcChunks.sum());
+        out.counter("queue_gc_bytes_total", "Bytes deleted by gc.", labels, gcBytes.sum());
+    }
+}
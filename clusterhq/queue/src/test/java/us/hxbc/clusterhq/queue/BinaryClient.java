@@ -0,0 +1,134 @@
+package us.hxbc.clusterhq.queue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A blocking client of BinaryServer. Requests are buffered until flush(),
+ * responses are read in the same order with read().
+ */
+class BinaryClient implements Closeable {
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+
+    BinaryClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+    }
+
+    void subscribe(String topic, String user) throws IOException {
+        send(frame(BinaryServer.SUBSCRIBE, topic, user));
+    }
+
+    void publish(String topic, String key, byte[] payload) throws IOException {
+        Frame f = frame(BinaryServer.PUBLISH, topic, key == null ? "" : key);
+        f.body.write(payload);
+        send(f);
+    }
+
+    void publish(String topic, String key, List<byte[]> payloads) throws IOException {
+        Frame f = frame(BinaryServer.PUBLISH_BATCH, topic, key == null ? "" : key);
+        f.body.writeInt(payloads.size());
+        for (byte[] payload : payloads) {
+            f.body.writeInt(payload.length);
+            f.body.write(payload);
+        }
+        send(f);
+    }
+
+    void fetch(String topic, String user, int max, long maxBytes) throws IOException {
+        Frame f = frame(BinaryServer.FETCH, topic, user);
+        f.body.writeInt(max);
+        f.body.writeLong(maxBytes);
+        send(f);
+    }
+
+    /**
+     * Sends a frame with whatever is in body.
+     */
+    void send(byte op, byte[] body) throws IOException {
+        out.writeInt(1 + body.length);
+        out.writeByte(op);
+        out.write(body);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    Response read() throws IOException {
+        int length = in.readInt();
+        byte status = in.readByte();
+        byte[] body = new byte[length - 1];
+        in.readFully(body);
+        return new Response(status, body);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private Frame frame(byte op, String... strings) throws IOException {
+        Frame f = new Frame(op);
+        for (String s : strings) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            f.body.writeShort(bytes.length);
+            f.body.write(bytes);
+        }
+        return f;
+    }
+
+    private void send(Frame f) throws IOException {
+        send(f.op, f.bytes.toByteArray());
+    }
+
+    private static class Frame {
+        final byte op;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream body = new DataOutputStream(bytes);
+
+        Frame(byte op) {
+            this.op = op;
+        }
+    }
+
+    static class Response {
+        final byte status;
+        final byte[] body;
+
+        Response(byte status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        long getSkipped() {
+            return ByteBuffer.wrap(body).getLong();
+        }
+
+        List<byte[]> getMessages() {
+            ByteBuffer buf = ByteBuffer.wrap(body);
+            buf.getLong();
+            List<byte[]> messages = new ArrayList<>();
+            for (int n = buf.getInt(); n > 0; n--) {
+                byte[] m = new byte[buf.getInt()];
+                buf.get(m);
+                messages.add(m);
+            }
+            return messages;
+        }
+    }
+}
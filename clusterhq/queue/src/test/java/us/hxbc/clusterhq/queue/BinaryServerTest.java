@@ -0,0 +1,167 @@
+package us.hxbc.clusterhq.queue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BinaryServerTest {
+    @Rule
+    public TemporaryFolder folder= new TemporaryFolder();
+    private Path dir;
+    private Main main;
+    private BinaryClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder().toPath();
+        start();
+    }
+
+    private void start() throws Exception {
+        main = new Main(0, dir, 4096, 1, 0);
+        main.start();
+        client = new BinaryClient("127.0.0.1", main.getBinaryPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        main.stop();
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+        client.subscribe("topic1", "user1");
+        for (int i = 0; i < 100; i++) {
+            client.publish("topic1", null, ("m" + i).getBytes());
+        }
+        client.publish("topic1", "k", Arrays.asList("a".getBytes(), "b".getBytes()));
+        client.fetch("topic1", "user1", 1000, Long.MAX_VALUE);
+        client.flush();
+
+        for (int i = 0; i < 102; i++) {
+            assertThat(client.read().status).isEqualTo(BinaryServer.OK);
+        }
+        BinaryClient.Response r = client.read();
+        assertThat(r.status).isEqualTo(BinaryServer.OK);
+        assertThat(r.getSkipped()).isEqualTo(0);
+        List<String> got = new ArrayList<>();
+        for (byte[] m : r.getMessages()) {
+            got.add(new String(m));
+        }
+        assertThat(got).hasSize(102);
+        assertThat(got.get(0)).isEqualTo("m0");
+        assertThat(got.get(99)).isEqualTo("m99");
+        assertThat(got.subList(100, 102)).containsExactly("a", "b");
+
+        client.fetch("topic1", "user1", 1000, Long.MAX_VALUE);
+        client.flush();
+        assertThat(client.read().getMessages()).isEmpty();
+    }
+
+    @Test
+    public void testLargeMessage() throws Exception {
+        byte[] payload = new byte[1024 * 1024];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        client.subscribe("topic1", "user1");
+        client.publish("topic1", null, payload);
+        client.fetch("topic1", "user1", 1, Long.MAX_VALUE);
+        client.flush();
+        assertThat(client.read().status).isEqualTo(BinaryServer.OK);
+        assertThat(client.read().status).isEqualTo(BinaryServer.OK);
+        assertThat(client.read().getMessages().get(0)).isEqualTo(payload);
+
+        // the connection goes back to its usual buffer
+        client.publish("topic1", null, "small".getBytes());
+        client.fetch("topic1", "user1", 1, Long.MAX_VALUE);
+        client.flush();
+        assertThat(client.read().status).isEqualTo(BinaryServer.OK);
+        assertThat(client.read().getMessages().get(0)).isEqualTo("small".getBytes());
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        client.fetch("topic1", "user1", 1, 1);
+        client.subscribe("topic1", "user1");
+        client.fetch("topic1", "user2", 1, 1);
+        client.fetch("topic1", "user1", 0, 1);
+        client.send((byte) 42, new byte[]{0, 1, 'x'});
+        client.subscribe("..", "user1");
+        client.fetch("topic1", "user1", 1, 1);
+        client.flush();
+
+        assertThat(client.read().status).isEqualTo(BinaryServer.NOT_FOUND);
+        assertThat(client.read().status).isEqualTo(BinaryServer.OK);
+        assertThat(client.read().status).isEqualTo(BinaryServer.NOT_FOUND);
+        assertThat(client.read().status).isEqualTo(BinaryServer.BAD_REQUEST);
+        assertThat(client.read().status).isEqualTo(BinaryServer.BAD_REQUEST);
+        assertThat(client.read().status).isEqualTo(BinaryServer.BAD_REQUEST);
+        // the connection is still usable
+        assertThat(client.read().getMessages()).isEmpty();
+    }
+
+    @Test
+    public void testStatus() throws Exception {
+        smallMemoryTopic("mem");
+        client.subscribe("mem", "user1");
+        client.publish("mem", null, Arrays.asList("a".getBytes(), "b".getBytes(), "c".getBytes()));
+        client.publish("mem", null, Arrays.asList("a".getBytes(), "b".getBytes()));
+        client.publish("mem", null, Arrays.asList("c".getBytes()));
+        client.flush();
+
+        assertThat(client.read().status).isEqualTo(BinaryServer.OK);
+        // bigger than the topic
+        assertThat(client.read().status).isEqualTo(BinaryServer.BAD_REQUEST);
+        assertThat(client.read().status).isEqualTo(BinaryServer.OK);
+        // full until user1 catches up
+        assertThat(client.read().status).isEqualTo(BinaryServer.UNAVAILABLE);
+    }
+
+    @Test
+    public void testPublishResults() throws Exception {
+        smallMemoryTopic("mem");
+        client.subscribe("mem", "user1");
+        // coalesced, but only 2 of them fit
+        for (String m : new String[]{"a", "b", "c"}) {
+            client.publish("mem", null, m.getBytes());
+        }
+        client.fetch("mem", "user1", 10, Long.MAX_VALUE);
+        client.flush();
+
+        assertThat(client.read().status).isEqualTo(BinaryServer.OK);
+        assertThat(client.read().status).isEqualTo(BinaryServer.OK);
+        assertThat(client.read().status).isEqualTo(BinaryServer.OK);
+        assertThat(client.read().status).isEqualTo(BinaryServer.UNAVAILABLE);
+        List<String> got = new ArrayList<>();
+        for (byte[] m : client.read().getMessages()) {
+            got.add(new String(m));
+        }
+        assertThat(got).containsExactly("a", "b");
+    }
+
+    /**
+     * Restarts with name as a memory topic of 2 messages that rejects
+     * publishes when it's full.
+     */
+    private void smallMemoryTopic(String name) throws Exception {
+        client.close();
+        main.stop();
+        Path topic = dir.resolve(name);
+        Files.createDirectories(topic);
+        Files.write(topic.resolve(TopicConfig.FILE_NAME),
+                "storage=memory\nmemory.capacity=2\nmemory.overflow=drop\n".getBytes());
+        start();
+    }
+}
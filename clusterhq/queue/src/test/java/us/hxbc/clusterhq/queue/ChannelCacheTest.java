@@ -0,0 +1,87 @@
+package us.hxbc.clusterhq.queue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ChannelCacheTest {
+    @Rule
+    public TemporaryFolder folder= new TemporaryFolder();
+    private Path dir;
+    private ChannelCache cache;
+
+    @Before
+    public void setup() throws Exception {
+        dir = folder.newFolder().toPath();
+        for (int i = 0; i < 3; i++) {
+            Files.write(dir.resolve(Integer.toString(i)), new byte[i]);
+        }
+        cache = new ChannelCache(2);
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        ChannelCache.Handle h1 = cache.acquire(dir.resolve("1"));
+        ChannelCache.Handle h2 = cache.acquire(dir.resolve("1"));
+        assertThat(h1).isSameAs(h2);
+        h1.close();
+        h2.close();
+        assertThat(h1.channel.isOpen()).isTrue();
+    }
+
+    @Test
+    public void testEvict() throws Exception {
+        ChannelCache.Handle h0 = cache.acquire(dir.resolve("0"));
+        h0.close();
+        cache.acquire(dir.resolve("1")).close();
+        cache.acquire(dir.resolve("2")).close();
+        assertThat(h0.channel.isOpen()).isFalse();
+        assertThat(cache.acquire(dir.resolve("0"))).isNotSameAs(h0);
+    }
+
+    @Test
+    public void testEvictInUse() throws Exception {
+        ChannelCache.Handle h0 = cache.acquire(dir.resolve("0"));
+        cache.acquire(dir.resolve("1")).close();
+        cache.acquire(dir.resolve("2")).close();
+        // still referenced, so it can't be closed yet
+        assertThat(h0.channel.isOpen()).isTrue();
+        h0.close();
+        assertThat(h0.channel.isOpen()).isFalse();
+    }
+
+    @Test
+    public void testMap() throws Exception {
+        ChannelCache.Handle h2 = cache.acquire(dir.resolve("2"));
+        assertThat(h2.map(1).capacity()).isEqualTo(2);
+        Files.write(dir.resolve("2"), new byte[]{0, 0, 1, 2}, StandardOpenOption.APPEND);
+        // still covered by the mapping
+        assertThat(h2.map(2).capacity()).isEqualTo(2);
+        ByteBuffer map = h2.map(4);
+        assertThat(map.capacity()).isEqualTo(6);
+        assertThat(map.get(5)).isEqualTo((byte) 2);
+        assertThat(h2.map(7)).isNull();
+        h2.close();
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        ChannelCache.Handle h1 = cache.acquire(dir.resolve("1"));
+        cache.invalidate(dir.resolve("1"));
+        Files.delete(dir.resolve("1"));
+        assertThat(h1.channel.size()).isEqualTo(1);
+        h1.close();
+        assertThat(h1.channel.isOpen()).isFalse();
+        assertThatThrownBy(() -> cache.acquire(dir.resolve("1"))).isInstanceOf(NoSuchFileException.class);
+    }
+}
@@ -0,0 +1,90 @@
+package us.hxbc.clusterhq.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Publishes the same amount of data with different chunk sizes, with and
+ * without preallocation, then GCs all of it.
+ *
+ * Usage: ChunkSizeBenchmark [dir] [megabytes] [publishers]
+ */
+public class ChunkSizeBenchmark {
+    private static final long[] CHUNK_SIZES = {4 * 1024, 1024 * 1024, 64 * 1024 * 1024};
+    private static final int MESSAGE_SIZE = 1024;
+
+    public static void main(String[] args) throws Exception {
+        Path parent = args.length > 0 ? Files.createDirectories(java.nio.file.Paths.get(args[0]))
+                : Files.createTempDirectory("bench");
+        long total = (args.length > 1 ? Long.parseLong(args[1]) : 128) * 1024 * 1024;
+        int publishers = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        System.out.println("chunkSize preallocate msgs/s MB/s chunks gcMillis");
+        for (long chunkSize : CHUNK_SIZES) {
+            for (boolean preallocate : new boolean[]{false, true}) {
+                Path dir = Files.createTempDirectory(parent, "chunks");
+                try {
+                    run(dir, chunkSize, preallocate, total, publishers);
+                } finally {
+                    delete(dir);
+                }
+            }
+        }
+        delete(parent);
+    }
+
+    private static void run(Path dir, long chunkSize, boolean preallocate, long total, int publishers)
+            throws Exception {
+        Properties props = new Properties();
+        props.setProperty("chunk.preallocate", Boolean.toString(preallocate));
+        DataStore ds = new DataStore(dir, chunkSize, 0, new TopicConfig(props));
+        ExecutorService executor = Executors.newFixedThreadPool(publishers + 1);
+        ds.startPreallocating(executor);
+
+        long nmessages = total / MESSAGE_SIZE;
+        byte[] payload = new byte[MESSAGE_SIZE];
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < publishers; i++) {
+            long n = nmessages / publishers;
+            futures.add(executor.submit(() -> {
+                for (long j = 0; j < n; j++) {
+                    ds.post(new ByteArrayInputStream(payload));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        int chunks = ds.getChunks().size();
+
+        start = System.nanoTime();
+        ds.gc(ds.getNextLSN() + chunkSize);
+        double gcMillis = (System.nanoTime() - start) / 1e6;
+
+        System.out.printf("%d %s %.0f %.1f %d %.1f%n", chunkSize, preallocate,
+                (nmessages / publishers * publishers) / secs, total / secs / 1024 / 1024, chunks, gcMillis);
+        ds.close();
+        executor.shutdown();
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
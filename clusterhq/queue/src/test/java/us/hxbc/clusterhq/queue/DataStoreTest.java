@@ -12,10 +12,27 @@ import javax.ws.rs.ClientErrorException;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
 
 public class DataStoreTest {
     @Rule
@@ -46,13 +63,13 @@ public class DataStoreTest {
     @Test
     public void testPostEmpty() throws Exception {
         post1(new byte[0], 0);
-        assertThat(ds.getNextLSN()).isEqualTo(8);
+        assertThat(ds.getNextLSN()).isEqualTo(DataStore.HEADER_SIZE);
     }
 
     @Test
     public void testPost1() throws Exception {
         post1(new byte[]{9}, 0);
-        assertThat(ds.getNextLSN()).isEqualTo(9);
+        assertThat(ds.getNextLSN()).isEqualTo(DataStore.HEADER_SIZE + 1);
     }
 
     @Test
@@ -75,7 +92,7 @@ public class DataStoreTest {
         ds.post(new ByteArrayInputStream(payload));
 
         Path p = ds.getChunkPath(ds.getBaseLSN(lsn));
-        assertThat(Files.size(p)).isEqualTo(8 + payload.length);
+        assertThat(Files.size(p)).isEqualTo(DataStore.HEADER_SIZE + payload.length);
         try (InputStream in = ds.get(lsn).in) {
             assertThat(ByteStreams.toByteArray(in)).isEqualTo(payload);
         }
@@ -113,18 +130,18 @@ public class DataStoreTest {
     public void testGCAll() throws Exception {
         testPost2();
         long lsn = ds.getNextLSN();
-        assertThat(Files.list(dir).count()).isEqualTo(1);
+        assertThat(countChunks(dir)).isEqualTo(1);
         ds.gc(lsn);
-        assertThat(Files.list(dir).count()).isEqualTo(0);
+        assertThat(countChunks(dir)).isEqualTo(0);
     }
 
     @Test
     public void testGCOneChunk() throws Exception {
         testPost2Chunks();
         long lsn = ds.getNextLSN();
-        assertThat(Files.list(dir).count()).isEqualTo(2);
+        assertThat(countChunks(dir)).isEqualTo(2);
         ds.gc(lsn);
-        assertThat(Files.list(dir).count()).isEqualTo(1);
+        assertThat(countChunks(dir)).isEqualTo(1);
     }
 
     @Test
@@ -132,9 +149,39 @@ public class DataStoreTest {
         long lsn = 0;
         lsn = post1(new byte[]{9}, lsn);
         post1(new byte[]{8, 9}, lsn);
-        assertThat(Files.list(dir).count()).isEqualTo(1);
+        assertThat(countChunks(dir)).isEqualTo(1);
         ds.gc(lsn);
-        assertThat(Files.list(dir).count()).isEqualTo(1);
+        assertThat(countChunks(dir)).isEqualTo(1);
+    }
+
+    @Test
+    public void testChunkRegistry() throws Exception {
+        testPost2Chunks();
+        assertThat(ds.getChunks()).containsExactly(entry(0L, 2L * DataStore.HEADER_SIZE + 3), entry(32L, DataStore.HEADER_SIZE + 1L));
+        ds = new DataStore(dir, 16);
+        assertThat(ds.getChunks()).containsExactly(entry(0L, 2L * DataStore.HEADER_SIZE + 3), entry(32L, DataStore.HEADER_SIZE + 1L));
+
+        assertThat(ds.gc(ds.getNextLSN())).isEqualTo(1);
+        assertThat(ds.getChunks()).containsExactly(entry(32L, DataStore.HEADER_SIZE + 1L));
+        assertThat(ds.get(0).in).isNull();
+        assertThat(ds.gc(ds.getNextLSN())).isEqualTo(0);
+    }
+
+    @Test
+    public void testMapLargeMessage() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("readCache.mapMessageBytes", "4");
+        ds = new DataStore(dir, 16, 0, new TopicConfig(props));
+        ds.post(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+        long lsn = ds.getNextLSN();
+        ds.post(new ByteArrayInputStream(new byte[]{1, 2, 3, 4}));
+
+        DataStore.Message m = ds.get(0);
+        assertThat(m.data).isNull();
+        m.in.close();
+        m = ds.get(lsn);
+        assertThat(m.data).isNotNull();
+        assertThat(ByteStreams.toByteArray(m.in)).isEqualTo(new byte[]{1, 2, 3, 4});
     }
 
     @Test
@@ -144,6 +191,355 @@ public class DataStoreTest {
         assertThat(ds.getNextLSN()).isEqualTo(lsn);
     }
 
+    @Test
+    public void testRecoverTornPayload() throws Exception {
+        long lsn = post1(new byte[]{9}, 0);
+        // header of a 2 byte message, but only 1 byte of it made it
+        appendToChunk(0, ByteBuffer.allocate(DataStore.HEADER_SIZE + 1).putLong(2).array());
+        ds = new DataStore(dir, 16);
+        assertThat(ds.getNextLSN()).isEqualTo(lsn);
+        assertThat(Files.size(ds.getChunkPath(0))).isEqualTo(lsn);
+        post1(new byte[]{8}, lsn);
+    }
+
+    @Test
+    public void testRecoverZeroedHeader() throws Exception {
+        long lsn = post1(new byte[]{9}, 0);
+        appendToChunk(0, new byte[DataStore.HEADER_SIZE]);
+        ds = new DataStore(dir, 16);
+        assertThat(ds.getNextLSN()).isEqualTo(lsn);
+    }
+
+    @Test
+    public void testRecoverBadChecksum() throws Exception {
+        ds = new DataStore(dir, 64);
+        long lsn = post1(new byte[]{9}, 0);
+        post1(new byte[]{8}, lsn);
+        // flip the payload of the second message
+        try (FileChannel out = FileChannel.open(ds.getChunkPath(0), StandardOpenOption.WRITE)) {
+            out.write(ByteBuffer.wrap(new byte[]{7}), lsn + DataStore.HEADER_SIZE);
+        }
+        ds = new DataStore(dir, 64);
+        assertThat(ds.getNextLSN()).isEqualTo(lsn);
+        try (InputStream in = ds.get(0).in) {
+            assertThat(ByteStreams.toByteArray(in)).isEqualTo(new byte[]{9});
+        }
+    }
+
+    @Test
+    public void testFormat() throws Exception {
+        long lsn = post1(new byte[]{9}, 0);
+        assertThat(Files.readAllLines(dir.resolve(DataStore.FORMAT))).containsExactly("2");
+
+        // chunks from before the format file are probed
+        Files.delete(dir.resolve(DataStore.FORMAT));
+        ds = new DataStore(dir, 16);
+        assertThat(ds.getNextLSN()).isEqualTo(lsn);
+        assertThat(Files.exists(dir.resolve(DataStore.FORMAT))).isTrue();
+
+        Files.write(dir.resolve(DataStore.FORMAT), "3\n".getBytes());
+        assertThatThrownBy(() -> new DataStore(dir, 16)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void testFormatUnchecksummed() throws Exception {
+        // records used to be only the length and the payload
+        Files.delete(dir.resolve(DataStore.FORMAT));
+        Files.write(dir.resolve("0"), ByteBuffer.allocate(8 + 5).putLong(5).put("hello".getBytes()).array());
+        ds = new DataStore(dir, 16);
+        assertThat(Files.readAllLines(dir.resolve(DataStore.FORMAT))).containsExactly("2 16");
+        assertThat(ds.getNextLSN()).isEqualTo(16);
+
+        DataStore.Message m = ds.get(0);
+        assertThat(ByteStreams.toByteArray(m.in)).isEqualTo("hello".getBytes());
+        assertThat(m.nextLSN).isEqualTo(DataStore.OLD_HEADER_SIZE + 5);
+        long lsn = m.nextLSN;
+        assertThat(ds.get(lsn).in).isNull();
+
+        // the end of the old records leads on to the new ones
+        assertThat(post1(new byte[]{9}, 16)).isEqualTo(ds.getLSNAfter(16, 1));
+        ds = new DataStore(dir, 16);
+        assertThat(ds.getNextLSN()).isEqualTo(ds.getLSNAfter(16, 1));
+        m = ds.get(lsn);
+        assertThat(ByteStreams.toByteArray(m.in)).isEqualTo(new byte[]{9});
+        assertThat(m.nextLSN).isEqualTo(ds.getNextLSN());
+
+        assertThat(ds.gc(ds.getNextLSN())).isEqualTo(1);
+        assertThat(ds.getChunks()).containsOnlyKeys(16L);
+        ds = new DataStore(dir, 16);
+        assertThat(ds.getNextLSN()).isEqualTo(ds.getLSNAfter(16, 1));
+    }
+
+    @Test
+    public void testPostBatch() throws Exception {
+        long lsn = post1(new byte[]{9}, 0);
+        long[] lsns = ds.post(Arrays.asList(new byte[]{1}, new byte[]{2, 3}, new byte[]{4}));
+        assertThat(lsns).isEqualTo(new long[]{lsn, ds.getLSNAfter(lsn, 1), ds.getLSNAfter(ds.getLSNAfter(lsn, 1), 2)});
+        assertThat(ds.getNextLSN()).isEqualTo(ds.getLSNAfter(lsns[2], 1));
+        byte[][] payloads = {{1}, {2, 3}, {4}};
+        for (int i = 0; i < lsns.length; i++) {
+            DataStore.Message m = ds.get(lsns[i]);
+            assertThat(ByteStreams.toByteArray(m.in)).isEqualTo(payloads[i]);
+            assertThat(m.nextLSN).isEqualTo(i + 1 < lsns.length ? lsns[i + 1] : ds.getNextLSN());
+        }
+
+        ds = new DataStore(dir, 16);
+        assertThat(ds.getNextLSN()).isEqualTo(ds.getLSNAfter(lsns[2], 1));
+    }
+
+    @Test
+    public void testRecoverUnfinishedBatch() throws Exception {
+        ds = new DataStore(dir, 64);
+        long lsn = post1(new byte[]{9}, 0);
+        ds.post(Arrays.asList(new byte[]{1}, new byte[]{2}, new byte[]{3}));
+        // the last message of the batch is torn
+        try (FileChannel out = FileChannel.open(ds.getChunkPath(0), StandardOpenOption.WRITE)) {
+            out.truncate(out.size() - 1);
+        }
+        ds = new DataStore(dir, 64);
+        assertThat(ds.getNextLSN()).isEqualTo(lsn);
+        assertThat(Files.size(ds.getChunkPath(0))).isEqualTo(lsn);
+    }
+
+    @Test
+    public void testRecoverUnfinishedBatchAcrossChunks() throws Exception {
+        long lsn = post1(new byte[]{9}, 0);
+        long[] lsns = ds.post(Arrays.asList(new byte[4], new byte[4], new byte[4]));
+        assertThat(ds.getChunks()).hasSize(3);
+        // the last chunk never got a whole record
+        try (FileChannel out = FileChannel.open(ds.getChunkPath(lsns[2]), StandardOpenOption.WRITE)) {
+            out.truncate(5);
+        }
+        ds = new DataStore(dir, 16);
+        assertThat(ds.getNextLSN()).isEqualTo(lsn);
+        assertThat(ds.getChunks()).containsExactly(entry(0L, lsn));
+        assertThat(Files.exists(ds.getChunkPath(lsns[1]))).isFalse();
+        post1(new byte[]{8}, lsn);
+    }
+
+    @Test
+    public void testRecoverTornFirstRecord() throws Exception {
+        testPost2Chunks();
+        long lsn = ds.getBaseLSN(ds.getNextLSN());
+        try (FileChannel out = FileChannel.open(ds.getChunkPath(lsn), StandardOpenOption.WRITE)) {
+            out.truncate(5);
+        }
+        // the chunk before doesn't end in a batch, so it's left alone
+        ds = new DataStore(dir, 16);
+        assertThat(ds.getNextLSN()).isEqualTo(lsn);
+        assertThat(ds.getChunks()).containsExactly(entry(0L, 2L * DataStore.HEADER_SIZE + 3), entry(lsn, 0L));
+        post1(new byte[]{8}, lsn);
+    }
+
+    @Test
+    public void testRecoverCorruptSealedChunk() throws Exception {
+        testPost2Chunks();
+        long lsn = ds.getBaseLSN(ds.getNextLSN());
+        try (FileChannel out = FileChannel.open(ds.getChunkPath(0), StandardOpenOption.WRITE)) {
+            out.write(ByteBuffer.wrap(new byte[]{7}), DataStore.HEADER_SIZE);
+        }
+        try (FileChannel out = FileChannel.open(ds.getChunkPath(lsn), StandardOpenOption.WRITE)) {
+            out.truncate(5);
+        }
+        assertThatThrownBy(() -> new DataStore(dir, 16)).isInstanceOf(StreamCorruptedException.class);
+        assertThat(Files.size(ds.getChunkPath(0))).isEqualTo(2L * DataStore.HEADER_SIZE + 3);
+    }
+
+    @Test
+    public void testDurability() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("durability", "os");
+        ds = new DataStore(dir, 64, 0, new TopicConfig(props));
+
+        long lsn = post1(new byte[]{9}, 0);
+        assertThat(getFsyncs()).isEqualTo(0);
+        ds.post(Arrays.asList(new byte[]{8}), Durability.BATCHED);
+        assertThat(getFsyncs()).isEqualTo(0);
+        try (InputStream in = ds.get(lsn).in) {
+            assertThat(ByteStreams.toByteArray(in)).isEqualTo(new byte[]{8});
+        }
+        ds.sync();
+        assertThat(getFsyncs()).isEqualTo(1);
+        ds.sync();
+        assertThat(getFsyncs()).isEqualTo(1);
+
+        ds.post(Arrays.asList(new byte[]{7}), Durability.ALWAYS);
+        assertThat(getFsyncs()).isEqualTo(2);
+        // rolling over syncs the chunk that's left behind
+        ds.post(Arrays.asList(new byte[30]), Durability.OS);
+        ds.post(Arrays.asList(new byte[1]), Durability.OS);
+        assertThat(ds.getChunks()).hasSize(2);
+        assertThat(getFsyncs()).isEqualTo(3);
+    }
+
+    @Test
+    public void testSyncRequests() throws Exception {
+        ds = new DataStore(dir, 64, 0);
+        AtomicInteger requests = new AtomicInteger();
+        ds.startSyncing(requests::incrementAndGet);
+
+        ds.post(Arrays.asList(new byte[]{9}), Durability.ALWAYS);
+        ds.post(Arrays.asList(new byte[]{9}), Durability.OS);
+        assertThat(requests.get()).isEqualTo(0);
+        ds.post(Arrays.asList(new byte[]{8}), Durability.BATCHED);
+        ds.post(Arrays.asList(new byte[]{8}), Durability.BATCHED);
+        // one is enough until it's done
+        assertThat(requests.get()).isEqualTo(1);
+        ds.sync();
+        assertThat(requests.get()).isEqualTo(1);
+        ds.post(Arrays.asList(new byte[]{7}), Durability.BATCHED);
+        assertThat(requests.get()).isEqualTo(2);
+    }
+
+    private long getFsyncs() {
+        return Arrays.stream(ds.getMetrics().fsyncLatency.getCounts()).sum();
+    }
+
+    @Test
+    public void testPreallocate() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("chunk.preallocate", "true");
+        ds = new DataStore(dir, 64, 0, new TopicConfig(props));
+        ds.startPreallocating(Runnable::run);
+        assertThat(Files.size(dir.resolve(DataStore.PREALLOCATED))).isEqualTo(64);
+
+        byte[] payload = new byte[40];
+        long lsn = ds.post(new ByteArrayInputStream(payload));
+        // the first chunk took the preallocated file and a new one is ready
+        assertThat(Files.size(ds.getChunkPath(0))).isEqualTo(64);
+        assertThat(ds.getChunks()).containsExactly(entry(0L, DataStore.HEADER_SIZE + 40L));
+        assertThat(Files.size(dir.resolve(DataStore.PREALLOCATED))).isEqualTo(64);
+        lsn = ds.post(new ByteArrayInputStream(payload));
+        assertThat(lsn).isEqualTo(128);
+        try (InputStream in = ds.get(0).in) {
+            assertThat(ByteStreams.toByteArray(in)).isEqualTo(payload);
+        }
+
+        // without a clean close the padding is left to recovery
+        ds.post(new ByteArrayInputStream(new byte[]{1}));
+        assertThat(Files.size(ds.getChunkPath(128))).isEqualTo(64);
+        ds = new DataStore(dir, 64, 0, new TopicConfig(props));
+        assertThat(ds.getNextLSN()).isEqualTo(128 + DataStore.HEADER_SIZE + 1);
+        assertThat(Files.exists(dir.resolve(DataStore.PREALLOCATED))).isFalse();
+        ds.startPreallocating(Runnable::run);
+        ds.close();
+        assertThat(Files.size(ds.getChunkPath(128))).isEqualTo(DataStore.HEADER_SIZE + 1);
+    }
+
+    /**
+     * Counts the files in dir that aren't the format file.
+     */
+    static long countChunks(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> !p.getFileName().toString().equals(DataStore.FORMAT)).count();
+        }
+    }
+
+    private void appendToChunk(long baseLSN, byte[] bytes) throws IOException {
+        Files.write(ds.getChunkPath(baseLSN), bytes, StandardOpenOption.APPEND);
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("groupCommit.maxDelayMs", "50");
+        ds = new DataStore(dir, 16, 0, new TopicConfig(props));
+
+        int nthreads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+        List<Future<Long>> posts = new ArrayList<>();
+        for (int i = 0; i < nthreads; i++) {
+            byte[] payload = new byte[]{(byte) i};
+            posts.add(executor.submit(() -> ds.post(new ByteArrayInputStream(payload))));
+        }
+        long maxLSN = 0;
+        for (Future<Long> f : posts) {
+            maxLSN = Math.max(maxLSN, f.get());
+        }
+        executor.shutdown();
+        assertThat(ds.getFlushCount()).isLessThan(nthreads);
+
+        long lsn = 0;
+        Set<Byte> seen = new HashSet<>();
+        for (int i = 0; i < nthreads; i++) {
+            DataStore.Message m = ds.get(lsn);
+            try (InputStream in = m.in) {
+                seen.add(ByteStreams.toByteArray(in)[0]);
+            }
+            lsn = m.nextLSN;
+        }
+        assertThat(seen).hasSize(nthreads);
+        assertThat(lsn).isEqualTo(maxLSN);
+        assertThat(ds.get(lsn).in).isNull();
+
+        ds = new DataStore(dir, 16);
+        assertThat(ds.getNextLSN()).isEqualTo(lsn);
+    }
+
+    @Test
+    public void testInterruptedPublish() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("groupCommit.maxDelayMs", "10000");
+        ds = new DataStore(dir, 1024, 0, new TopicConfig(props));
+
+        // the interrupt cuts the delay short, the message still goes out
+        // and the publisher finds out
+        Thread.currentThread().interrupt();
+        assertThat(ds.post(new ByteArrayInputStream(new byte[]{1}))).isEqualTo(DataStore.HEADER_SIZE + 1);
+        assertThat(Thread.interrupted()).isTrue();
+        assertThat(ds.getCommittedLSN()).isEqualTo(DataStore.HEADER_SIZE + 1);
+        try (InputStream in = ds.get(0).in) {
+            assertThat(ByteStreams.toByteArray(in)).isEqualTo(new byte[]{1});
+        }
+    }
+
+    @Test
+    public void testMmapSealed() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("readCache.mmap", "true");
+        ds = new DataStore(dir, 16, 0, new TopicConfig(props));
+
+        long lsn = post1(new byte[]{9}, 0);
+        // the tail chunk is still read through the channel
+        assertThat(ds.get(0).data).isNull();
+        lsn = post1(new byte[]{8, 9}, lsn);
+        post1(new byte[]{7}, lsn);
+
+        DataStore.Message m = ds.get(0);
+        assertThat(m.data).isNotNull();
+        assertThat(m.data.isDirect()).isTrue();
+        assertThat(m.data.remaining()).isEqualTo(1);
+        assertThat(m.data.get(0)).isEqualTo((byte) 9);
+        assertThat(ByteStreams.toByteArray(m.in)).isEqualTo(new byte[]{9});
+        m = ds.get(m.nextLSN);
+        assertThat(ByteStreams.toByteArray(m.in)).isEqualTo(new byte[]{8, 9});
+        assertThat(m.nextLSN).isEqualTo(lsn);
+
+        ds.gc(ds.getNextLSN());
+        assertThat(ds.get(0).in).isNull();
+    }
+
+    @Test
+    public void testTailCache() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("readCache.tailBytes", "4");
+        ds = new DataStore(dir, 16, 0, new TopicConfig(props));
+
+        long lsn = post1(new byte[]{9}, 0);
+        post1(new byte[]{8, 9, 7, 6}, lsn);
+        // the first message fell out of the cache and is read from the chunk
+        DataStore.Message m = ds.get(0);
+        assertThat(m.data).isNull();
+        assertThat(ByteStreams.toByteArray(m.in)).isEqualTo(new byte[]{9});
+        m = ds.get(lsn);
+        assertThat(m.data).isNotNull();
+        assertThat(ByteStreams.toByteArray(m.in)).isEqualTo(new byte[]{8, 9, 7, 6});
+        assertThat(m.nextLSN).isEqualTo(ds.getNextLSN());
+
+        ds.gc(ds.getNextLSN());
+        assertThat(ds.get(lsn).in).isNull();
+    }
+
     private void dumpFile(Path p) throws IOException {
         byte[] bytes = ByteStreams.toByteArray(Files.newInputStream(p));
         for (int i = 0; i < bytes.length; i++) {
@@ -156,7 +552,7 @@ public class DataStoreTest {
         long size = Files.exists(p) ? Files.size(p) : 0;
         long next = ds.post(new ByteArrayInputStream(payload));
         logger.info("lsn is now {}", next);
-        assertThat(Files.size(p)).isEqualTo(size + 8 + payload.length);
+        assertThat(Files.size(p)).isEqualTo(size + DataStore.HEADER_SIZE + payload.length);
 
         try (InputStream in = ds.get(lsn).in) {
             assertThat(ByteStreams.toByteArray(in)).isEqualTo(payload);
@@ -0,0 +1,95 @@
+package us.hxbc.clusterhq.queue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GCSchedulerTest {
+    @Rule
+    public TemporaryFolder folder= new TemporaryFolder();
+    private Path dir;
+    private GCScheduler scheduler;
+    private Queue queue;
+
+    @Before
+    public void setup() throws Exception {
+        dir = folder.newFolder().toPath();
+        // passes are run by hand
+        scheduler = new GCScheduler(2, Long.MAX_VALUE / 2);
+        queue = new Queue(dir, 32);
+        queue.start(scheduler);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        queue.stop();
+        scheduler.stop();
+    }
+
+    @Test
+    public void testGCOnChunkBoundary() throws Exception {
+        queue.subscribe("foo");
+        // hello and world share the first chunk
+        queue.post(new ByteArrayInputStream("hello".getBytes()));
+        queue.post(new ByteArrayInputStream("world".getBytes()));
+        queue.post(new ByteArrayInputStream("again".getBytes()));
+        scheduler.pass();
+        assertThat(DataStoreTest.countChunks(dir.resolve("data"))).isEqualTo(2);
+        assertThat(getStat("gc.topics")).isEqualTo(1);
+
+        // still in the first chunk, so nobody asks for gc
+        queue.get("foo");
+        scheduler.pass();
+        assertThat(getStat("gc.passes")).isEqualTo(2);
+        assertThat(getStat("gc.topics")).isEqualTo(1);
+
+        queue.get("foo");
+        scheduler.pass();
+        assertThat(DataStoreTest.countChunks(dir.resolve("data"))).isEqualTo(1);
+        assertThat(getStat("gc.topics")).isEqualTo(2);
+        assertThat(getStat("gc.chunks")).isEqualTo(1);
+        assertThat(getStat("gc.lastPass.chunks")).isEqualTo(1);
+    }
+
+    @Test
+    public void testSlowPass() throws Exception {
+        GCScheduler timed = new GCScheduler(2, 10);
+        Queue q = new Queue(folder.newFolder().toPath(), 32);
+        try {
+            CountDownLatch fired = new CountDownLatch(1);
+            // gcNow() needs the monitor, so the pass that start() asks for
+            // is stuck until this is done
+            synchronized (q) {
+                q.start(timed);
+                Thread.sleep(50);
+                timed.execute(fired::countDown, 10);
+                assertThat(fired.await(10, TimeUnit.SECONDS)).isTrue();
+            }
+        } finally {
+            q.stop();
+            timed.stop();
+        }
+    }
+
+    private long getStat(String name) {
+        StringBuilder stats = new StringBuilder();
+        scheduler.appendStats(stats);
+        for (String line : stats.toString().split("\n")) {
+            String[] kv = line.split(" ");
+            if (kv[0].equals(name)) {
+                return Long.parseLong(kv[1]);
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+}
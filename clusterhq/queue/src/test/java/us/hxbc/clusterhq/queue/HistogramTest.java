@@ -0,0 +1,37 @@
+package us.hxbc.clusterhq.queue;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HistogramTest {
+    @Test
+    public void testBuckets() {
+        for (long v : new long[]{0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789, 1L << 40}) {
+            int i = Histogram.index(v);
+            assertThat(Histogram.upperBound(i)).isGreaterThan(v);
+            if (i > 0) {
+                assertThat(Histogram.upperBound(i - 1)).isLessThanOrEqualTo(v);
+            }
+            // within 1/16 of the value
+            assertThat(Histogram.upperBound(i) - v).isLessThanOrEqualTo(Math.max(1, v / 16));
+        }
+        assertThat(Histogram.index(Long.MAX_VALUE)).isEqualTo(Histogram.BUCKETS - 1);
+    }
+
+    @Test
+    public void testWrite() {
+        Histogram h = new Histogram();
+        h.record(500);
+        h.record(2000000);
+        MetricsWriter out = new MetricsWriter();
+        out.histogram("latency_seconds", "Latency.", MetricsWriter.label("topic", "a\"b"), h);
+        assertThat(out.toString()).contains(
+                "# TYPE latency_seconds histogram\n",
+                "latency_seconds_bucket{topic=\"a\\\"b\",le=\"0.000001\"} 1\n",
+                "latency_seconds_bucket{topic=\"a\\\"b\",le=\"0.001\"} 1\n",
+                "latency_seconds_bucket{topic=\"a\\\"b\",le=\"0.0025\"} 2\n",
+                "latency_seconds_bucket{topic=\"a\\\"b\",le=\"+Inf\"} 2\n",
+                "latency_seconds_count{topic=\"a\\\"b\"} 2\n");
+    }
+}
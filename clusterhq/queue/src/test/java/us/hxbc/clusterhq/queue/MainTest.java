@@ -1,5 +1,6 @@
 package us.hxbc.clusterhq.queue;
 
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -8,8 +9,22 @@ import org.junit.rules.TemporaryFolder;
 
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.nio.file.Files;
 import java.nio.file.Path;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -90,6 +105,328 @@ public class MainTest {
         assertThat(resp.getStatus()).isEqualTo(200);
     }
 
+    @Test
+    public void testBatchMessage() throws Exception {
+        Response resp;
+        resp = target.path("/topic1/user1").request().post(null);
+        assertThat(resp.getStatus()).isEqualTo(200);
+        resp = target.path("/topic1/user1").queryParam("max", 10).request().get();
+        assertThat(resp.getStatus()).isEqualTo(204);
+
+        for (String m : new String[]{"hello", "world"}) {
+            resp = target.path("/topic1").request().post(Entity.text(m));
+            assertThat(resp.getStatus()).isEqualTo(200);
+        }
+        resp = target.path("/topic1/user1").queryParam("max", 10).request().get();
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.getMediaType()).isEqualTo(MediaType.APPLICATION_OCTET_STREAM_TYPE);
+        DataInputStream in = new DataInputStream(resp.readEntity(InputStream.class));
+        for (String m : new String[]{"hello", "world"}) {
+            byte[] payload = new byte[(int) in.readLong()];
+            in.readFully(payload);
+            assertThat(new String(payload)).isEqualTo(m);
+        }
+        assertThat(in.read()).isEqualTo(-1);
+
+        resp = target.path("/topic1/user1").queryParam("max", 10).request().get();
+        assertThat(resp.getStatus()).isEqualTo(204);
+        resp = target.path("/topic1/user1").queryParam("max", 0).request().get();
+        assertThat(resp.getStatus()).isEqualTo(400);
+    }
+
+    @Test
+    public void testBatchPublish() throws Exception {
+        Response resp;
+        resp = target.path("/topic1/user1").request().post(null);
+        assertThat(resp.getStatus()).isEqualTo(200);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        for (String m : new String[]{"hello", "world"}) {
+            out.writeLong(m.length());
+            out.write(m.getBytes());
+        }
+        resp = target.path("/topic1").queryParam("batch", true).request()
+                .post(Entity.entity(body.toByteArray(), MediaType.APPLICATION_OCTET_STREAM));
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.readEntity(String.class)).isEqualTo("0\n" + (DataStore.HEADER_SIZE + 5) + "\n");
+
+        for (String m : new String[]{"hello", "world"}) {
+            resp = target.path("/topic1/user1").request().get();
+            assertThat(resp.getStatus()).isEqualTo(200);
+            assertThat(resp.readEntity(String.class)).isEqualTo(m);
+        }
+
+        // a length that's longer than what follows
+        out.writeLong(10);
+        out.write("short".getBytes());
+        resp = target.path("/topic1").queryParam("batch", true).request()
+                .post(Entity.entity(body.toByteArray(), MediaType.APPLICATION_OCTET_STREAM));
+        assertThat(resp.getStatus()).isEqualTo(400);
+        resp = target.path("/topic1/user1").request().get();
+        assertThat(resp.getStatus()).isEqualTo(204);
+    }
+
+    @Test
+    public void testDurability() throws Exception {
+        Response resp;
+        resp = target.path("/topic1").request().post(Entity.text("hello"));
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.getHeaderString(Api.DURABILITY_HEADER)).isEqualTo("always");
+        resp = target.path("/topic1").queryParam("durability", "os").request().post(Entity.text("hello"));
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.getHeaderString(Api.DURABILITY_HEADER)).isEqualTo("os");
+        resp = target.path("/topic1").queryParam("durability", "never").request().post(Entity.text("hello"));
+        assertThat(resp.getStatus()).isEqualTo(400);
+    }
+
+    @Test
+    public void testMemoryTopic() throws Exception {
+        main.stop();
+        Path topic = dir.resolve("topic1");
+        Files.createDirectories(topic);
+        Files.write(topic.resolve(TopicConfig.FILE_NAME), "storage=memory\n".getBytes());
+        initClient();
+
+        Response resp;
+        resp = target.path("/topic1/user1").request().post(null);
+        assertThat(resp.getStatus()).isEqualTo(200);
+        resp = target.path("/topic1").request().post(Entity.text("hello"));
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.getHeaderString(Api.DURABILITY_HEADER)).isEqualTo("none");
+        resp = target.path("/topic1/user1").request().get();
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.readEntity(String.class)).isEqualTo("hello");
+        assertThat(Files.exists(topic.resolve("data"))).isFalse();
+
+        // neither the message nor the subscription survive a restart
+        resp = target.path("/topic1").request().post(Entity.text("world"));
+        assertThat(resp.getStatus()).isEqualTo(200);
+        main.stop();
+        initClient();
+        resp = target.path("/topic1/user1").request().get();
+        assertThat(resp.getStatus()).isEqualTo(404);
+        resp = target.path("/topic1/user1").request().post(null);
+        assertThat(resp.getStatus()).isEqualTo(200);
+        resp = target.path("/topic1/user1").request().get();
+        assertThat(resp.getStatus()).isEqualTo(204);
+    }
+
+    @Test
+    public void testLease() throws Exception {
+        Response resp;
+        resp = target.path("/topic1/group1").request().post(null);
+        assertThat(resp.getStatus()).isEqualTo(200);
+        for (String m : new String[]{"hello", "world"}) {
+            resp = target.path("/topic1").request().post(Entity.text(m));
+            assertThat(resp.getStatus()).isEqualTo(200);
+        }
+
+        resp = target.path("/topic1/group1").queryParam("lease", 1).request().get();
+        assertThat(resp.getStatus()).isEqualTo(200);
+        String first = resp.getHeaderString(Api.LEASE_HEADER);
+        assertThat(first).isNotNull();
+        assertThat(resp.getHeaderString(Api.REDELIVERED_HEADER)).isNull();
+        DataInputStream in = new DataInputStream(resp.readEntity(InputStream.class));
+        byte[] payload = new byte[(int) in.readLong()];
+        in.readFully(payload);
+        assertThat(new String(payload)).isEqualTo("hello");
+        assertThat(in.read()).isEqualTo(-1);
+
+        // the lease times out and the next member gets it again
+        Thread.sleep(10);
+        resp = target.path("/topic1/group1").queryParam("lease", 60000).queryParam("max", 10).request().get();
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.getHeaderString(Api.LEASE_HEADER)).isEqualTo(first);
+        assertThat(resp.getHeaderString(Api.REDELIVERED_HEADER)).isEqualTo("true");
+        resp.close();
+        resp = target.path("/topic1/group1").queryParam("lease", 60000).queryParam("max", 10).request().get();
+        assertThat(resp.getStatus()).isEqualTo(200);
+        String second = resp.getHeaderString(Api.LEASE_HEADER);
+        resp.close();
+        resp = target.path("/topic1/group1").queryParam("lease", 60000).request().get();
+        assertThat(resp.getStatus()).isEqualTo(204);
+
+        for (String lease : new String[]{first, second}) {
+            resp = target.path("/topic1/group1/" + lease).request().delete();
+            assertThat(resp.getStatus()).isEqualTo(200);
+        }
+        resp = target.path("/topic1/group1/" + first).request().delete();
+        assertThat(resp.getStatus()).isEqualTo(404);
+        assertThat(getStat("topic1", "redeliveries")).isEqualTo(1);
+        resp = target.path("/topic1/group1").queryParam("lease", 0).request().get();
+        assertThat(resp.getStatus()).isEqualTo(400);
+    }
+
+    @Test
+    public void testSkippedHeader() throws Exception {
+        // memory topics hand out messages that are written straight to
+        // grizzly, their headers have to make it too
+        main.stop();
+        Path topic = dir.resolve("topic1");
+        Files.createDirectories(topic);
+        Files.write(topic.resolve(TopicConfig.FILE_NAME), "storage=memory\nmemory.capacity=2\n".getBytes());
+        initClient();
+
+        Response resp;
+        resp = target.path("/topic1/user1").request().post(null);
+        assertThat(resp.getStatus()).isEqualTo(200);
+        for (String m : new String[]{"m0", "m1", "m2", "m3"}) {
+            resp = target.path("/topic1").request().post(Entity.text(m));
+            assertThat(resp.getStatus()).isEqualTo(200);
+        }
+        resp = target.path("/topic1/user1").request().get();
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.getMediaType()).isEqualTo(MediaType.APPLICATION_OCTET_STREAM_TYPE);
+        assertThat(resp.getHeaderString(Api.SKIPPED_HEADER)).isEqualTo("2");
+        assertThat(resp.readEntity(String.class)).isEqualTo("m2");
+
+        for (String m : new String[]{"m4", "m5", "m6"}) {
+            resp = target.path("/topic1").request().post(Entity.text(m));
+            assertThat(resp.getStatus()).isEqualTo(200);
+        }
+        resp = target.path("/topic1/user1").queryParam("max", 10).request().get();
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.getMediaType()).isEqualTo(MediaType.APPLICATION_OCTET_STREAM_TYPE);
+        assertThat(resp.getHeaderString(Api.SKIPPED_HEADER)).isEqualTo("2");
+        DataInputStream in = new DataInputStream(resp.readEntity(InputStream.class));
+        for (String m : new String[]{"m5", "m6"}) {
+            byte[] payload = new byte[(int) in.readLong()];
+            in.readFully(payload);
+            assertThat(new String(payload)).isEqualTo(m);
+        }
+        assertThat(in.read()).isEqualTo(-1);
+    }
+
+    @Test
+    public void testLargeMessage() throws Exception {
+        // big enough to be mapped and sent without copying
+        byte[] big = new byte[200 * 1024];
+        new Random(0).nextBytes(big);
+        Response resp;
+        resp = target.path("/topic1/user1").request().post(null);
+        assertThat(resp.getStatus()).isEqualTo(200);
+        for (int i = 0; i < 3; i++) {
+            resp = target.path("/topic1").request().post(Entity.entity(big, MediaType.APPLICATION_OCTET_STREAM));
+            assertThat(resp.getStatus()).isEqualTo(200);
+        }
+
+        resp = target.path("/topic1/user1").request().get();
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.getLength()).isEqualTo(big.length);
+        assertThat(resp.readEntity(byte[].class)).isEqualTo(big);
+
+        resp = target.path("/topic1/user1").queryParam("max", 10).request().get();
+        assertThat(resp.getStatus()).isEqualTo(200);
+        DataInputStream in = new DataInputStream(resp.readEntity(InputStream.class));
+        for (int i = 0; i < 2; i++) {
+            byte[] payload = new byte[(int) in.readLong()];
+            in.readFully(payload);
+            assertThat(payload).isEqualTo(big);
+        }
+        assertThat(in.read()).isEqualTo(-1);
+    }
+
+    @Test
+    public void testLongPoll() throws Exception {
+        Response resp;
+        resp = target.path("/topic1/user1").request().post(null);
+        assertThat(resp.getStatus()).isEqualTo(200);
+
+        // nothing is posted so this times out
+        resp = target.path("/topic1/user1").queryParam("wait", 100).request().get();
+        assertThat(resp.getStatus()).isEqualTo(204);
+
+        Future<Response> parked = target.path("/topic1/user1").queryParam("wait", 10000)
+                .request().async().get();
+        for (int i = 0; i < 100 && getWaiters("topic1") == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(getWaiters("topic1")).isEqualTo(1);
+        assertThat(parked.isDone()).isFalse();
+
+        resp = target.path("/topic1").request().post(Entity.text("hello"));
+        assertThat(resp.getStatus()).isEqualTo(200);
+        resp = parked.get(5, TimeUnit.SECONDS);
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.readEntity(String.class)).isEqualTo("hello");
+        assertThat(getWaiters("topic1")).isEqualTo(0);
+    }
+
+    @Test
+    public void testChunkSizePinned() throws Exception {
+        Response resp = target.path("/topic1").request().post(Entity.text("hello"));
+        assertThat(resp.getStatus()).isEqualTo(200);
+        // a different default later must not apply to the existing topic
+        assertThat(TopicConfig.load(dir.resolve("topic1")).chunkSize).isEqualTo(4096);
+    }
+
+    @Test
+    public void testPartitioned() throws Exception {
+        main.stop();
+        Path topic = dir.resolve("topic1");
+        Files.createDirectories(topic.resolve("data"));
+        Files.createDirectories(topic.resolve("subscriptions"));
+        Files.write(topic.resolve(TopicConfig.FILE_NAME), "partitions=2\n".getBytes());
+        initClient();
+
+        Response resp;
+        resp = target.path("/topic1/user1").request().post(null);
+        assertThat(resp.getStatus()).isEqualTo(200);
+        for (String m : new String[]{"hello", "world"}) {
+            resp = target.path("/topic1").queryParam("key", "k").request().post(Entity.text(m));
+            assertThat(resp.getStatus()).isEqualTo(200);
+        }
+        assertThat(getStat("topic1", "partitions")).isEqualTo(2);
+        assertThat(getStat("topic1", "nextLSN.0") + getStat("topic1", "nextLSN.1")).isGreaterThan(0);
+
+        for (String m : new String[]{"hello", "world"}) {
+            resp = target.path("/topic1/user1").request().get();
+            assertThat(resp.getStatus()).isEqualTo(200);
+            assertThat(resp.readEntity(String.class)).isEqualTo(m);
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        Response resp;
+        resp = target.path("/topic1/user1").request().post(null);
+        assertThat(resp.getStatus()).isEqualTo(200);
+        for (String m : new String[]{"hello", "world"}) {
+            resp = target.path("/topic1").request().post(Entity.text(m));
+            assertThat(resp.getStatus()).isEqualTo(200);
+        }
+        resp = target.path("/topic1/user1").request().get();
+        assertThat(resp.readEntity(String.class)).isEqualTo("hello");
+
+        String metrics = target.path("/metrics").request().get(String.class);
+        assertThat(metrics).contains(
+                "# TYPE queue_published_messages_total counter\n",
+                "queue_published_messages_total{topic=\"topic1\"} 2\n",
+                "queue_published_bytes_total{topic=\"topic1\"} 10\n",
+                "queue_consumed_messages_total{topic=\"topic1\"} 1\n",
+                "queue_publish_seconds_count{topic=\"topic1\"} 2\n",
+                "queue_subscriber_lag_bytes{topic=\"topic1\",subscriber=\"user1\"} " +
+                        (DataStore.HEADER_SIZE + 5) + "\n");
+        assertThat(metrics).contains("queue_fsync_seconds_count{topic=\"topic1\"} ")
+                .doesNotContain("queue_fsync_seconds_count{topic=\"topic1\"} 0\n");
+    }
+
+    private int getWaiters(String topic) {
+        return (int) getStat(topic, "waiters");
+    }
+
+    private long getStat(String topic, String name) {
+        String stats = target.path("/" + topic).request().get(String.class);
+        for (String line : stats.split("\n")) {
+            String[] kv = line.split(" ");
+            if (kv[0].equals(name)) {
+                return Long.parseLong(kv[1]);
+            }
+        }
+        throw new AssertionError(name + " not in " + stats);
+    }
+
     @Test
     public void testRestart() throws Exception {
         Response resp;
@@ -100,4 +437,70 @@ public class MainTest {
         resp = target.path("/topic1/user1").request().get();
         assertThat(resp.getStatus()).isEqualTo(204);
     }
+
+    @Test
+    public void testLazyRecovery() throws Exception {
+        Response resp;
+        for (String topic : new String[]{"topic1", "topic2"}) {
+            resp = target.path("/" + topic + "/user1").request().post(null);
+            assertThat(resp.getStatus()).isEqualTo(200);
+            resp = target.path("/" + topic).request().post(Entity.text("hello"));
+            assertThat(resp.getStatus()).isEqualTo(200);
+        }
+        main.stop();
+
+        main = new Main(0, dir, 4096, 1, -1, 0);
+        main.start();
+        target = c.target("http://127.0.0.1:" + main.getPort());
+        String stats = target.request().get(String.class);
+        assertThat(stats).contains("topics 2\n", "topics.unopened 2\n");
+
+        resp = target.path("/topic1/user1").request().get();
+        assertThat(resp.getStatus()).isEqualTo(200);
+        assertThat(resp.readEntity(String.class)).isEqualTo("hello");
+        stats = target.request().get(String.class);
+        assertThat(stats).contains("topics 2\n", "topics.unopened 1\n");
+        assertThat(target.path("/metrics").request().get(String.class))
+                .contains("topic=\"topic1\"").doesNotContain("topic=\"topic2\"");
+
+        resp = target.path("/topic3/user1").request().get();
+        assertThat(resp.getStatus()).isEqualTo(404);
+    }
+
+    @Test
+    public void testStopWhileOpening() throws Exception {
+        // the topic only gets to start after the GC scheduler stopped
+        CountDownLatch opening = new CountDownLatch(1);
+        CountDownLatch stopped = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        GCScheduler scheduler = new GCScheduler(1, 60 * 1000) {
+            @Override
+            ScheduledFuture<?> schedule(Runnable task, long periodMs) {
+                opening.countDown();
+                Uninterruptibles.awaitUninterruptibly(stopped);
+                return super.schedule(task, periodMs);
+            }
+
+            @Override
+            void cancel(Queue q) {
+                cancelled.countDown();
+                super.cancel(q);
+            }
+        };
+        Path apiDir = folder.newFolder().toPath();
+        Path topic = apiDir.resolve("topic1");
+        Files.createDirectories(topic);
+        Files.write(topic.resolve(TopicConfig.FILE_NAME), "checkpoint.intervalMs=1000\n".getBytes());
+        Api api = new Api(apiDir, 4096, scheduler, 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Topic> f = executor.submit(() -> api.getTopic("topic1"));
+        opening.await();
+        api.stop();
+        scheduler.stop();
+        stopped.countDown();
+        assertThat(f.get()).isNotNull();
+        // and is stopped once it's open
+        assertThat(cancelled.await(10, TimeUnit.SECONDS)).isTrue();
+        executor.shutdown();
+    }
 }
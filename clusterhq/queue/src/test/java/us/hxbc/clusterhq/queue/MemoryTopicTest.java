@@ -0,0 +1,212 @@
+package us.hxbc.clusterhq.queue;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.ServerErrorException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MemoryTopicTest {
+    private static MemoryTopic topic(int capacity, String overflow) {
+        Properties props = new Properties();
+        props.setProperty("storage", "memory");
+        props.setProperty("memory.capacity", Integer.toString(capacity));
+        props.setProperty("memory.overflow", overflow);
+        return new MemoryTopic(new TopicConfig(props));
+    }
+
+    @Test
+    public void testPostGet() throws Exception {
+        MemoryTopic topic = topic(4, "overwrite");
+        topic.post(string2Stream("before"), null);
+        topic.subscribe("foo");
+        assertThat(topic.get("foo").in).isNull();
+
+        topic.post(string2Stream("hello"), null);
+        long[] lsns = topic.post(Arrays.asList("a".getBytes(), "bb".getBytes(), "c".getBytes()), null, null);
+        assertThat(lsns).isEqualTo(new long[]{2, 3, 4});
+        assertThat(topic.getDurability(Durability.ALWAYS)).isEqualTo(Durability.NONE);
+
+        DataStore.Message m = topic.get("foo");
+        assertThat(stream2String(m.in)).isEqualTo("hello");
+        assertThat(m.nextLSN).isEqualTo(2);
+        List<DataStore.Message> messages = topic.get("foo", 10, 2);
+        assertThat(messages).hasSize(1);
+        assertThat(stream2String(messages.get(0).in)).isEqualTo("a");
+        messages = topic.get("foo", 10, 2);
+        assertThat(messages).hasSize(1);
+        assertThat(stream2String(messages.get(0).in)).isEqualTo("bb");
+        messages = topic.get("foo", 10, Long.MAX_VALUE);
+        assertThat(messages).hasSize(1);
+        assertThat(messages.get(0).nextLSN).isEqualTo(5);
+        assertThat(topic.get("foo").in).isNull();
+
+        assertThatThrownBy(() -> topic.get("bar")).isInstanceOf(ClientErrorException.class);
+        assertThatThrownBy(() -> topic.post(Arrays.asList(new byte[5][]), null, null))
+                .isInstanceOf(ClientErrorException.class);
+    }
+
+    @Test
+    public void testOverwrite() throws Exception {
+        MemoryTopic topic = topic(4, "overwrite");
+        topic.subscribe("foo");
+        for (int i = 0; i < 6; i++) {
+            topic.post(string2Stream("m" + i), null);
+        }
+        DataStore.Message m = topic.get("foo");
+        assertThat(stream2String(m.in)).isEqualTo("m2");
+        assertThat(m.skipped).isEqualTo(2);
+        m = topic.get("foo");
+        assertThat(stream2String(m.in)).isEqualTo("m3");
+        assertThat(m.skipped).isEqualTo(0);
+    }
+
+    @Test
+    public void testOverwriteBatch() throws Exception {
+        MemoryTopic topic = topic(4, "overwrite");
+        topic.subscribe("foo");
+        topic.post(Arrays.asList("a".getBytes(), "b".getBytes(), "c".getBytes()), null, null);
+        topic.post(Arrays.asList("d".getBytes(), "e".getBytes(), "f".getBytes()), null, null);
+        // c is still there but the rest of its batch isn't
+        List<DataStore.Message> messages = topic.get("foo", 10, Long.MAX_VALUE);
+        assertThat(messages).hasSize(3);
+        assertThat(stream2String(messages.get(0).in)).isEqualTo("d");
+        assertThat(messages.get(0).skipped).isEqualTo(3);
+        assertThat(messages.get(2).nextLSN).isEqualTo(6);
+    }
+
+    @Test
+    public void testDrop() throws Exception {
+        MemoryTopic topic = topic(4, "drop");
+        // nobody to keep messages for
+        for (int i = 0; i < 6; i++) {
+            topic.post(string2Stream("m" + i), null);
+        }
+        topic.subscribe("foo");
+        for (int i = 0; i < 4; i++) {
+            topic.post(string2Stream("n" + i), null);
+        }
+        assertThatThrownBy(() -> topic.post(string2Stream("dropped"), null))
+                .isInstanceOf(ServerErrorException.class);
+        assertThat(stream2String(topic.get("foo").in)).isEqualTo("n0");
+        topic.post(string2Stream("n4"), null);
+
+        StringBuilder stats = new StringBuilder();
+        topic.appendStats(stats);
+        assertThat(stats.toString()).contains("dropped 1\n");
+        for (int i = 1; i < 5; i++) {
+            assertThat(stream2String(topic.get("foo").in)).isEqualTo("n" + i);
+        }
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        MemoryTopic topic = topic(1024, "drop");
+        topic.subscribe("foo");
+        int nthreads = 4, nmessages = 200;
+        AtomicInteger consumed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(nthreads * 2);
+        List<Future<Set<String>>> consumers = new ArrayList<>();
+        for (int t = 0; t < nthreads; t++) {
+            int id = t;
+            executor.submit(() -> {
+                for (int i = 0; i < nmessages; i++) {
+                    topic.post(string2Stream(id + "." + i), null);
+                }
+                return null;
+            });
+            consumers.add(executor.submit(() -> {
+                Set<String> got = new HashSet<>();
+                long deadline = System.currentTimeMillis() + 10000;
+                while (consumed.get() < nthreads * nmessages && System.currentTimeMillis() < deadline) {
+                    DataStore.Message m = topic.get("foo");
+                    if (m.in != null) {
+                        got.add(stream2String(m.in));
+                        consumed.incrementAndGet();
+                    }
+                }
+                return got;
+            }));
+        }
+
+        // every message went to exactly one consumer
+        Set<String> all = new HashSet<>();
+        for (Future<Set<String>> f : consumers) {
+            all.addAll(f.get());
+        }
+        executor.shutdown();
+        assertThat(consumed.get()).isEqualTo(nthreads * nmessages);
+        assertThat(all).hasSize(nthreads * nmessages);
+    }
+
+    @Test
+    public void testConcurrentBatches() throws Exception {
+        MemoryTopic topic = topic(1024, "drop");
+        topic.subscribe("foo");
+        int nbatches = 200, batchSize = 4;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> publisher = executor.submit(() -> {
+            for (int i = 0; i < nbatches; i++) {
+                List<byte[]> payloads = new ArrayList<>();
+                for (int j = 0; j < batchSize; j++) {
+                    payloads.add((i + "." + j).getBytes());
+                }
+                while (true) {
+                    try {
+                        topic.post(payloads, null, null);
+                        break;
+                    } catch (ServerErrorException e) {
+                        // full, wait for the reader
+                    }
+                }
+            }
+            return null;
+        });
+
+        // a batch is never seen in part
+        int consumed = 0;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (consumed < nbatches * batchSize && System.currentTimeMillis() < deadline) {
+            List<DataStore.Message> messages = topic.get("foo", Integer.MAX_VALUE, Long.MAX_VALUE);
+            assertThat(messages.size() % batchSize).isEqualTo(0);
+            for (int i = 0; i < messages.size(); i++) {
+                assertThat(stream2String(messages.get(i).in))
+                        .isEqualTo((consumed / batchSize) + "." + (i % batchSize));
+                if (i % batchSize == batchSize - 1) {
+                    consumed += batchSize;
+                }
+            }
+        }
+        publisher.get();
+        executor.shutdown();
+        assertThat(consumed).isEqualTo(nbatches * batchSize);
+    }
+
+    private static InputStream string2Stream(String s) {
+        return new ByteArrayInputStream(s.getBytes());
+    }
+
+    private static String stream2String(InputStream in) throws IOException {
+        try {
+            return new String(ByteStreams.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+}
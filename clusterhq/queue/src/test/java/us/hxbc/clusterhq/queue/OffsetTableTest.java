@@ -0,0 +1,111 @@
+package us.hxbc.clusterhq.queue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OffsetTableTest {
+    @Rule
+    public TemporaryFolder folder= new TemporaryFolder();
+    private Path dir;
+    private OffsetTable offsets;
+
+    @Before
+    public void setup() throws Exception {
+        dir = folder.newFolder().toPath();
+        offsets = new OffsetTable(dir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        offsets.close();
+    }
+
+    private void reload() throws Exception {
+        offsets.close();
+        offsets = new OffsetTable(dir);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        assertThat(offsets.min()).isEqualTo(Long.MAX_VALUE);
+        assertThat(offsets.getSlots()).isEmpty();
+    }
+
+    @Test
+    public void testAllocate() throws Exception {
+        int foo = offsets.allocate("foo", 10);
+        int bar = offsets.allocate("bar", 20);
+        assertThat(foo).isNotEqualTo(bar);
+        assertThat(offsets.min()).isEqualTo(10);
+
+        offsets.set(foo, 30);
+        assertThat(offsets.min()).isEqualTo(20);
+        offsets.force();
+
+        reload();
+        assertThat(offsets.getSlots()).containsOnlyKeys("foo", "bar");
+        assertThat(offsets.get(offsets.getSlots().get("foo"))).isEqualTo(30);
+        assertThat(offsets.min()).isEqualTo(20);
+    }
+
+    @Test
+    public void testFree() throws Exception {
+        offsets.allocate("foo", 10);
+        offsets.allocate("bar", 20);
+        offsets.free("foo");
+        assertThat(offsets.min()).isEqualTo(20);
+
+        // the slot is reused, and the old name doesn't come back
+        int baz = offsets.allocate("baz", 30);
+        reload();
+        assertThat(offsets.getSlots()).containsOnlyKeys("bar", "baz");
+        assertThat(offsets.get(baz)).isEqualTo(30);
+    }
+
+    @Test
+    public void testGrow() throws Exception {
+        for (int i = 0; i < 3000; i++) {
+            offsets.allocate("sub" + i, 3000 - i);
+        }
+        assertThat(offsets.min()).isEqualTo(1);
+        reload();
+        assertThat(offsets.getSlots()).hasSize(3000);
+        assertThat(offsets.min()).isEqualTo(1);
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        for (int i = 0; i < 3000; i++) {
+            offsets.allocate("sub" + i, i);
+            offsets.free("sub" + i);
+        }
+        offsets.allocate("foo", 42);
+        long size = Files.size(dir.resolve("index"));
+        reload();
+        assertThat(Files.size(dir.resolve("index"))).isLessThan(size);
+        assertThat(offsets.getSlots()).containsOnlyKeys("foo");
+        assertThat(offsets.min()).isEqualTo(42);
+    }
+
+    @Test
+    public void testTornIndex() throws Exception {
+        offsets.allocate("foo", 10);
+        offsets.close();
+        Files.write(dir.resolve("index"), new byte[]{0, 0, 0, 1, 0, 0, 0, 9, 'b'},
+                StandardOpenOption.APPEND);
+        offsets = new OffsetTable(dir);
+        assertThat(offsets.getSlots()).containsOnlyKeys("foo");
+        offsets.allocate("bar", 20);
+        reload();
+        assertThat(offsets.getSlots()).containsOnlyKeys("foo", "bar");
+    }
+}
@@ -0,0 +1,232 @@
+package us.hxbc.clusterhq.queue;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.ws.rs.ClientErrorException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PartitionedTopicTest {
+    @Rule
+    public TemporaryFolder folder= new TemporaryFolder();
+    private Path dir;
+    private PartitionedTopic topic;
+
+    @Before
+    public void setup() throws Exception {
+        dir = folder.newFolder().toPath();
+        topic = new PartitionedTopic(dir, 16, config(4));
+    }
+
+    private static TopicConfig config(int partitions) {
+        Properties props = new Properties();
+        props.setProperty("partitions", Integer.toString(partitions));
+        return new TopicConfig(props);
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        topic.subscribe("foo");
+        for (int i = 0; i < 8; i++) {
+            topic.post(string2Stream("m" + i), null);
+        }
+        for (int p = 0; p < 4; p++) {
+            assertThat(DataStoreTest.countChunks(dir.resolve("data").resolve(Integer.toString(p)))).isGreaterThan(0);
+        }
+
+        Set<String> got = new HashSet<>();
+        DataStore.Message m;
+        while ((m = topic.get("foo")).in != null) {
+            got.add(stream2String(m.in));
+        }
+        assertThat(got).hasSize(8);
+    }
+
+    @Test
+    public void testKeyOrder() throws Exception {
+        topic.subscribe("foo");
+        for (int i = 0; i < 8; i++) {
+            topic.post(string2Stream("a" + i), "a");
+            topic.post(string2Stream("b" + i), "b");
+        }
+
+        List<String> a = new ArrayList<>();
+        List<String> b = new ArrayList<>();
+        for (DataStore.Message m : topic.get("foo", 100, Long.MAX_VALUE)) {
+            String s = stream2String(m.in);
+            (s.startsWith("a") ? a : b).add(s);
+        }
+        assertThat(a).containsExactly("a0", "a1", "a2", "a3", "a4", "a5", "a6", "a7");
+        assertThat(b).containsExactly("b0", "b1", "b2", "b3", "b4", "b5", "b6", "b7");
+        assertThat(topic.get("foo", 100, Long.MAX_VALUE)).isEmpty();
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception {
+        topic.subscribe("foo");
+        for (int i = 0; i < 4; i++) {
+            topic.post(string2Stream("hello"), null);
+        }
+        // only the first message may go over
+        assertThat(topic.get("foo", 100, 1)).hasSize(1);
+        assertThat(topic.get("foo", 100, 10)).hasSize(2);
+        assertThat(topic.get("foo", 100, 10)).hasSize(1);
+    }
+
+    @Test
+    public void testPartialBatch() throws Exception {
+        topic.subscribe("foo");
+        for (int i = 0; i < 4; i++) {
+            topic.post(string2Stream("m" + i), null);
+        }
+        // the last partition to be read has a record that's too big
+        Path chunk = dir.resolve("data").resolve("3").resolve("0");
+        try (FileChannel out = FileChannel.open(chunk, StandardOpenOption.WRITE)) {
+            out.write(ByteBuffer.allocate(8).putLong(0, 1000), 0);
+        }
+
+        // the first 3 are claimed by then, so they come back anyway
+        List<DataStore.Message> messages = topic.get("foo", 10, Long.MAX_VALUE);
+        List<String> got = new ArrayList<>();
+        for (DataStore.Message m : messages) {
+            got.add(stream2String(m.in));
+        }
+        assertThat(got).containsExactly("m0", "m1", "m2");
+        assertThatThrownBy(() -> topic.get("foo", 10, Long.MAX_VALUE)).isInstanceOf(StreamCorruptedException.class);
+    }
+
+    @Test
+    public void testLease() throws Exception {
+        topic.subscribe("foo");
+        for (int i = 0; i < 8; i++) {
+            topic.post(string2Stream("m" + i), null);
+        }
+
+        Set<String> got = new HashSet<>();
+        Set<String> ids = new HashSet<>();
+        Lease lease;
+        while ((lease = topic.lease("foo", 100, Long.MAX_VALUE, 60000)) != null) {
+            ids.add(lease.id);
+            for (DataStore.Message m : lease.messages) {
+                got.add(stream2String(m.in));
+            }
+        }
+        assertThat(got).hasSize(8);
+        assertThat(ids).containsOnly("0:0", "1:0", "2:0", "3:0");
+        for (String id : ids) {
+            topic.ack("foo", id);
+        }
+        assertThatThrownBy(() -> topic.ack("foo", "0:0")).isInstanceOf(ClientErrorException.class);
+        assertThatThrownBy(() -> topic.ack("foo", "4:0")).isInstanceOf(ClientErrorException.class);
+        assertThatThrownBy(() -> topic.ack("foo", "0")).isInstanceOf(ClientErrorException.class);
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        topic.subscribe("foo");
+        topic.post(string2Stream("hello"), "k");
+        topic.post(string2Stream("world"), "k");
+        assertThat(stream2String(topic.get("foo").in)).isEqualTo("hello");
+        topic.stop();
+
+        // adding partitions keeps the subscriptions
+        topic = new PartitionedTopic(dir, 16, config(6));
+        assertThat(stream2String(topic.get("foo").in)).isEqualTo("world");
+        assertThat(topic.getPartition(5).getSubscribers()).containsExactly("foo");
+        topic.stop();
+
+        assertThatThrownBy(() -> new PartitionedTopic(dir, 16, config(2)))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void testUnpartitioned() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Queue q = new Queue(dir, 16);
+        q.post(string2Stream("hello"));
+        q.stop();
+        assertThatThrownBy(() -> new PartitionedTopic(dir, 16, config(2)))
+                .isInstanceOf(IllegalStateException.class).hasMessageContaining("unpartitioned data");
+    }
+
+    @Test
+    public void testUnpartitionedEmpty() throws Exception {
+        // an empty topic can be partitioned, even one that had subscribers
+        Path dir = folder.newFolder().toPath();
+        Queue q = new Queue(dir, 16);
+        q.subscribe("foo");
+        q.unsubscribe("foo");
+        q.stop();
+        topic = new PartitionedTopic(dir, 16, config(2));
+        topic.subscribe("foo");
+        topic.post(string2Stream("hello"), "k");
+        assertThat(stream2String(topic.get("foo").in)).isEqualTo("hello");
+        topic.stop();
+    }
+
+    @Test
+    public void testUnpartitionedSubscriptions() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        Queue q = new Queue(dir, 16);
+        q.subscribe("foo");
+        q.stop();
+        assertThatThrownBy(() -> new PartitionedTopic(dir, 16, config(2)))
+                .isInstanceOf(IllegalStateException.class).hasMessageContaining("unpartitioned subscriptions");
+
+        // subscriptions used to be one file each
+        Files.delete(dir.resolve("subscriptions").resolve("offsets"));
+        Files.delete(dir.resolve("subscriptions").resolve("index"));
+        Files.write(dir.resolve("subscriptions").resolve("foo"), new byte[8]);
+        assertThatThrownBy(() -> new PartitionedTopic(dir, 16, config(2)))
+                .isInstanceOf(IllegalStateException.class).hasMessageContaining("unpartitioned subscriptions");
+    }
+
+    @Test
+    public void testAwait() throws Exception {
+        topic.subscribe("foo");
+        AtomicInteger woken = new AtomicInteger();
+        Runnable waiter = woken::incrementAndGet;
+        assertThat(topic.await(waiter)).isTrue();
+        assertThat(topic.await(waiter)).isTrue();
+        topic.post(string2Stream("hello"), null);
+        topic.post(string2Stream("world"), null);
+        assertThat(woken.get()).isEqualTo(1);
+
+        topic.await(waiter);
+        topic.cancel(waiter);
+        topic.post(string2Stream("again"), null);
+        assertThat(woken.get()).isEqualTo(1);
+    }
+
+    private static InputStream string2Stream(String s) {
+        return new ByteArrayInputStream(s.getBytes());
+    }
+
+    private static String stream2String(InputStream in) throws IOException {
+        try {
+            return new String(ByteStreams.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package us.hxbc.clusterhq.queue;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Publishes and then consumes small messages through the REST API and
+ * through the binary protocol.
+ *
+ * Usage: ProtocolBenchmark [messages] [connections] [pipeline depth]
+ */
+public class ProtocolBenchmark {
+    private static final int MESSAGE_SIZE = 100;
+
+    public static void main(String[] args) throws Exception {
+        int nmessages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int depth = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        Path dir = Files.createTempDirectory("bench");
+        Main main = new Main(0, dir, 1024 * 1024, 1, 0);
+        main.start();
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        int perConnection = nmessages / connections;
+        byte[] payload = new byte[MESSAGE_SIZE];
+
+        try {
+            System.out.println("protocol publish msgs/s consume msgs/s");
+            Client c = ClientBuilder.newClient();
+            WebTarget target = c.target("http://127.0.0.1:" + main.getPort());
+            target.path("/rest/user").request().post(null).close();
+            double publish = run(executor, connections, () -> {
+                for (int i = 0; i < perConnection; i++) {
+                    target.path("/rest").request()
+                            .post(Entity.entity(payload, MediaType.APPLICATION_OCTET_STREAM_TYPE)).close();
+                }
+            });
+            double consume = run(executor, connections, () -> {
+                for (int i = 0; i < perConnection; i++) {
+                    Response r = target.path("/rest/user").request().get();
+                    r.readEntity(byte[].class);
+                }
+            });
+            System.out.printf("rest %.0f %.0f%n", perConnection * connections / publish,
+                    perConnection * connections / consume);
+            c.close();
+
+            try (BinaryClient client = new BinaryClient("127.0.0.1", main.getBinaryPort())) {
+                client.subscribe("binary", "user");
+                client.flush();
+                client.read();
+            }
+            publish = run(executor, connections, () -> {
+                try (BinaryClient client = new BinaryClient("127.0.0.1", main.getBinaryPort())) {
+                    int outstanding = 0;
+                    for (int i = 0; i < perConnection; i++) {
+                        client.publish("binary", null, payload);
+                        if (++outstanding == depth) {
+                            client.flush();
+                            for (; outstanding > 0; outstanding--) {
+                                client.read();
+                            }
+                        }
+                    }
+                    client.flush();
+                    for (; outstanding > 0; outstanding--) {
+                        client.read();
+                    }
+                }
+            });
+            consume = run(executor, connections, () -> {
+                try (BinaryClient client = new BinaryClient("127.0.0.1", main.getBinaryPort())) {
+                    // one message per fetch, like the REST consumers
+                    for (int i = 0; i < perConnection; i += depth) {
+                        for (int j = 0; j < depth; j++) {
+                            client.fetch("binary", "user", 1, Long.MAX_VALUE);
+                        }
+                        client.flush();
+                        for (int j = 0; j < depth; j++) {
+                            client.read();
+                        }
+                    }
+                }
+            });
+            System.out.printf("binary %.0f %.0f%n", perConnection * connections / publish,
+                    perConnection * connections / consume);
+        } finally {
+            executor.shutdown();
+            main.stop();
+        }
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs task on every connection, returns how long it took in seconds.
+     */
+    private static double run(ExecutorService executor, int connections, Task task) throws Exception {
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            futures.add(executor.submit(() -> {
+                task.run();
+                return null;
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+}
@@ -1,5 +1,6 @@
 package us.hxbc.clusterhq.queue;
 
+import com.google.common.base.Strings;
 import com.google.common.io.ByteStreams;
 import org.junit.Before;
 import org.junit.Rule;
@@ -12,8 +13,20 @@ import javax.ws.rs.ClientErrorException;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
@@ -28,7 +41,7 @@ public class QueueTest {
     @Before
     public void setup() throws Exception {
         dir = folder.newFolder().toPath();
-        queue = new Queue(dir, 16);
+        queue = new Queue(dir, 32);
     }
 
     @Test
@@ -39,8 +52,58 @@ public class QueueTest {
     @Test
     public void testSubscribe() throws Exception {
         queue.subscribe("foo");
-        Path p = dir.resolve("subscriptions").resolve("foo");
-        assertThat(Files.exists(p)).isTrue();
+        queue = new Queue(dir, 32);
+        assertThat(queue.get("foo").in).isNull();
+    }
+
+    @Test
+    public void testMigrateSubscriptionFiles() throws Exception {
+        queue.subscribe("foo");
+        queue.post(string2Stream("hello"));
+        queue.post(string2Stream("world"));
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("hello");
+        queue.stop();
+
+        // subscriptions used to be stored as one file per subscriber
+        Path subscriptions = dir.resolve("subscriptions");
+        long lsn = DataStore.HEADER_SIZE + 5;
+        Files.delete(subscriptions.resolve("offsets"));
+        Files.delete(subscriptions.resolve("index"));
+        Files.write(subscriptions.resolve("foo"), ByteBuffer.allocate(8).putLong(lsn).array());
+
+        queue = new Queue(dir, 32);
+        assertThat(Files.exists(subscriptions.resolve("foo"))).isFalse();
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("world");
+    }
+
+    @Test
+    public void testUpgrade() throws Exception {
+        // a topic as the first version wrote it: records were only the
+        // length and the payload, the next record went to the next chunk
+        // only once one went past the end
+        dir = folder.newFolder().toPath();
+        Path data = dir.resolve("data");
+        Path subscriptions = dir.resolve("subscriptions");
+        Files.createDirectories(data);
+        Files.createDirectories(subscriptions);
+        String big = Strings.repeat("x", 40);
+        Files.write(data.resolve("0"), ByteBuffer.allocate(8 + 5 + 8 + 5 + 8 + 40)
+                .putLong(5).put("hello".getBytes())
+                .putLong(5).put("world".getBytes())
+                .putLong(40).put(big.getBytes()).array());
+        Files.write(data.resolve("80"), ByteBuffer.allocate(8 + 5).putLong(5).put("again".getBytes()).array());
+        Files.write(subscriptions.resolve("foo"), ByteBuffer.allocate(8).putLong(8 + 5).array());
+
+        queue = new Queue(dir, 64);
+        queue.post(string2Stream("new"));
+        for (String m : new String[]{"world", big, "again", "new"}) {
+            assertThat(stream2String(queue.get("foo").in)).isEqualTo(m);
+        }
+        assertThat(queue.get("foo").in).isNull();
+
+        queue = new Queue(dir, 64);
+        queue.post(string2Stream("newer"));
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("newer");
     }
 
     private InputStream string2Stream(String str) {
@@ -112,6 +175,219 @@ public class QueueTest {
         assertThat(queue.get("foo").in).isNull();
     }
 
+    @Test
+    public void testGetBatch() throws Exception {
+        queue.subscribe("foo");
+        for (int i = 0; i < 5; i++) {
+            queue.post(string2Stream("hello" + i));
+        }
+        List<DataStore.Message> messages = queue.get("foo", 2, Long.MAX_VALUE);
+        assertThat(messages).hasSize(2);
+        assertThat(stream2String(messages.get(0).in)).isEqualTo("hello0");
+        assertThat(stream2String(messages.get(1).in)).isEqualTo("hello1");
+
+        // the first message is returned even if it's too big
+        messages = queue.get("foo", 10, 1);
+        assertThat(messages).hasSize(1);
+        assertThat(stream2String(messages.get(0).in)).isEqualTo("hello2");
+
+        queue = new Queue(dir, 32);
+        messages = queue.get("foo", 10, Long.MAX_VALUE);
+        assertThat(messages).hasSize(2);
+        assertThat(stream2String(messages.get(0).in)).isEqualTo("hello3");
+        assertThat(stream2String(messages.get(1).in)).isEqualTo("hello4");
+        assertThat(queue.get("foo", 10, Long.MAX_VALUE)).isEmpty();
+    }
+
+    @Test
+    public void testAwait() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("longPoll.maxWaiters", "1");
+        queue = new Queue(dir, 32, new TopicConfig(props));
+
+        AtomicInteger woken = new AtomicInteger();
+        Runnable waiter = woken::incrementAndGet;
+        assertThat(queue.await(waiter)).isTrue();
+        assertThat(queue.await(waiter)).isTrue();
+        assertThat(queue.await(() -> {})).isFalse();
+        assertThat(queue.getWaiterCount()).isEqualTo(1);
+
+        queue.post(string2Stream("hello"));
+        assertThat(woken.get()).isEqualTo(1);
+        assertThat(queue.getWaiterCount()).isEqualTo(0);
+        queue.post(string2Stream("world"));
+        assertThat(woken.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testCheckpointEvery() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("checkpoint.every", "3");
+        queue = new Queue(dir, 32, new TopicConfig(props));
+        queue.subscribe("foo");
+        for (int i = 0; i < 4; i++) {
+            queue.post(string2Stream("hello" + i));
+        }
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("hello0");
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("hello1");
+
+        // crash before the checkpoint, messages are delivered again
+        queue = new Queue(dir, 32, new TopicConfig(props));
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("hello0");
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("hello1");
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("hello2");
+
+        queue = new Queue(dir, 32, new TopicConfig(props));
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("hello3");
+
+        // a clean stop always checkpoints
+        queue.stop();
+        queue = new Queue(dir, 32, new TopicConfig(props));
+        assertThat(queue.get("foo").in).isNull();
+    }
+
+    @Test
+    public void testCheckpointInterval() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("checkpoint.every", "0");
+        props.setProperty("checkpoint.intervalMs", "10");
+        queue = new Queue(dir, 32, new TopicConfig(props));
+        queue.subscribe("foo");
+        queue.post(string2Stream("hello"));
+        queue.post(string2Stream("world"));
+        GCScheduler scheduler = new GCScheduler(1, 10000);
+        queue.start(scheduler);
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("hello");
+        for (int i = 0; i < 100 && getCheckpoint("foo") == 0; i++) {
+            Thread.sleep(10);
+        }
+
+        Queue restarted = new Queue(dir, 32, new TopicConfig(props));
+        assertThat(stream2String(restarted.get("foo").in)).isEqualTo("world");
+        queue.stop();
+        scheduler.stop();
+    }
+
+    private long getCheckpoint(String user) throws IOException {
+        try (OffsetTable offsets = new OffsetTable(dir.resolve("subscriptions"))) {
+            return offsets.get(offsets.getSlots().get(user));
+        }
+    }
+
+    @Test
+    public void testGCCheckpointed() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("checkpoint.every", "2");
+        queue = new Queue(dir, 32, new TopicConfig(props));
+        queue.subscribe("foo");
+        queue.post(string2Stream("hello"));
+        queue.post(string2Stream("world"));
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("hello");
+        queue.gcNow();
+        assertThat(DataStoreTest.countChunks(dir.resolve("data"))).isEqualTo(1);
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("world");
+        queue.gcNow();
+        assertThat(DataStoreTest.countChunks(dir.resolve("data"))).isEqualTo(0);
+    }
+
+    @Test
+    public void testConcurrentGet() throws Exception {
+        int nmessages = 500;
+        int nthreads = 8;
+        queue = new Queue(dir, 256);
+        queue.subscribe("foo");
+        for (int i = 0; i < nmessages; i++) {
+            queue.post(string2Stream(Integer.toString(i)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+        List<Future<List<String>>> consumers = new ArrayList<>();
+        for (int t = 0; t < nthreads; t++) {
+            boolean batch = t % 2 == 0;
+            consumers.add(executor.submit(() -> {
+                List<String> got = new ArrayList<>();
+                while (true) {
+                    if (batch) {
+                        List<DataStore.Message> messages = queue.get("foo", 3, Long.MAX_VALUE);
+                        if (messages.isEmpty()) {
+                            return got;
+                        }
+                        for (DataStore.Message m : messages) {
+                            got.add(stream2String(m.in));
+                        }
+                    } else {
+                        DataStore.Message m = queue.get("foo");
+                        if (m.in == null) {
+                            return got;
+                        }
+                        got.add(stream2String(m.in));
+                    }
+                }
+            }));
+        }
+
+        List<String> all = new ArrayList<>();
+        for (Future<List<String>> f : consumers) {
+            all.addAll(f.get());
+        }
+        executor.shutdown();
+
+        // nothing is lost and nothing is delivered twice
+        assertThat(all).hasSize(nmessages);
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < nmessages; i++) {
+            expected.add(Integer.toString(i));
+        }
+        assertThat(new HashSet<>(all)).isEqualTo(expected);
+    }
+
+    @Test
+    public void testFanOut() throws Exception {
+        int nmessages = 200;
+        int nthreads = 8;
+        queue = new Queue(dir, 256);
+        for (int t = 0; t < nthreads; t++) {
+            queue.subscribe("foo" + t);
+        }
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < nmessages; i++) {
+            queue.post(string2Stream(Integer.toString(i)));
+            expected.add(Integer.toString(i));
+        }
+
+        // every subscriber gets every message in order, whether or not
+        // its reads were shared with others
+        ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+        List<Future<List<String>>> consumers = new ArrayList<>();
+        for (int t = 0; t < nthreads; t++) {
+            String user = "foo" + t;
+            consumers.add(executor.submit(() -> {
+                List<String> got = new ArrayList<>();
+                DataStore.Message m;
+                while ((m = queue.get(user)).in != null) {
+                    got.add(stream2String(m.in));
+                }
+                return got;
+            }));
+        }
+        for (Future<List<String>> f : consumers) {
+            assertThat(f.get()).isEqualTo(expected);
+        }
+        executor.shutdown();
+        logger.info("{} of {} reads were shared", queue.getCoalescedReads(), nmessages * nthreads);
+    }
+
+    @Test
+    public void testUnsharedReadStreams() throws Exception {
+        queue.subscribe("foo");
+        queue.post(string2Stream("hello"));
+        // nobody else wants it, so it isn't copied
+        DataStore.Message m = queue.get("foo");
+        assertThat(m.data).isNull();
+        assertThat(stream2String(m.in)).isEqualTo("hello");
+        assertThat(queue.getCoalescedReads()).isEqualTo(0);
+    }
+
     @Test
     public void testResubscribeGet() throws Exception {
         queue.subscribe("foo");
@@ -125,8 +401,8 @@ public class QueueTest {
     public void testUnsubscribe() throws Exception {
         queue.subscribe("foo");
         queue.unsubscribe("foo");
-        Path p = dir.resolve("subscriptions").resolve("foo");
-        assertThat(Files.exists(p)).isFalse();
+        queue = new Queue(dir, 32);
+        assertThatThrownBy(() -> queue.get("foo")).isInstanceOf(ClientErrorException.class);
     }
 
     @Test
@@ -143,9 +419,9 @@ public class QueueTest {
         queue.post(string2Stream("hello"));
         queue.post(string2Stream("world"));
         queue.unsubscribe("foo");
-        assertThat(Files.list(dir.resolve("data")).count()).isEqualTo(1);
+        assertThat(DataStoreTest.countChunks(dir.resolve("data"))).isEqualTo(1);
         queue.gcNow();
-        assertThat(Files.list(dir.resolve("data")).count()).isEqualTo(0);
+        assertThat(DataStoreTest.countChunks(dir.resolve("data"))).isEqualTo(0);
     }
 
     @Test
@@ -155,9 +431,9 @@ public class QueueTest {
         queue.post(string2Stream("world"));
         assertThat(stream2String(queue.get("foo").in)).isEqualTo("hello");
         assertThat(stream2String(queue.get("foo").in)).isEqualTo("world");
-        assertThat(Files.list(dir.resolve("data")).count()).isEqualTo(1);
+        assertThat(DataStoreTest.countChunks(dir.resolve("data"))).isEqualTo(1);
         queue.gcNow();
-        assertThat(Files.list(dir.resolve("data")).count()).isEqualTo(0);
+        assertThat(DataStoreTest.countChunks(dir.resolve("data"))).isEqualTo(0);
     }
 
     @Test
@@ -169,9 +445,9 @@ public class QueueTest {
         assertThat(stream2String(queue.get("foo").in)).isEqualTo("hello");
         assertThat(stream2String(queue.get("foo").in)).isEqualTo("world");
         assertThat(stream2String(queue.get("bar").in)).isEqualTo("hello");
-        assertThat(Files.list(dir.resolve("data")).count()).isEqualTo(1);
+        assertThat(DataStoreTest.countChunks(dir.resolve("data"))).isEqualTo(1);
         queue.gcNow();
-        assertThat(Files.list(dir.resolve("data")).count()).isEqualTo(1);
+        assertThat(DataStoreTest.countChunks(dir.resolve("data"))).isEqualTo(1);
     }
 
     @Test
@@ -179,9 +455,254 @@ public class QueueTest {
         queue.gcNow();
         testGcNone2Users();
         assertThat(stream2String(queue.get("bar").in)).isEqualTo("world");
-        assertThat(Files.list(dir.resolve("data")).count()).isEqualTo(1);
+        assertThat(DataStoreTest.countChunks(dir.resolve("data"))).isEqualTo(1);
+        queue.gcNow();
+        assertThat(DataStoreTest.countChunks(dir.resolve("data"))).isEqualTo(0);
+    }
+
+    @Test
+    public void testRetentionBytes() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("retention.bytes", "40");
+        queue = new Queue(dir, 32, new TopicConfig(props));
+        queue.subscribe("foo");
+        for (int i = 0; i < 6; i++) {
+            queue.post(string2Stream("m" + i));
+        }
+        assertThat(queue.gcNow()).isGreaterThan(0);
+        long firstLSN = queue.getFirstLSN();
+        assertThat(firstLSN).isGreaterThan(0);
+
+        DataStore.Message m = queue.get("foo");
+        assertThat(m.skipped).isEqualTo(firstLSN);
+        assertThat(stream2String(m.in)).isNotEqualTo("m0");
+        m = queue.get("foo");
+        assertThat(m.skipped).isEqualTo(0);
+        m.in.close();
+    }
+
+    @Test
+    public void testRetentionAge() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("retention.ms", "1");
+        queue = new Queue(dir, 32, new TopicConfig(props));
+        queue.subscribe("foo");
+        for (int i = 0; i < 6; i++) {
+            queue.post(string2Stream("m" + i));
+        }
+        Thread.sleep(10);
+        queue.gcNow();
+
+        // the last chunk is always kept
+        assertThat(DataStoreTest.countChunks(dir.resolve("data"))).isEqualTo(1);
+        List<DataStore.Message> messages = queue.get("foo", 100, Long.MAX_VALUE);
+        assertThat(messages).isNotEmpty();
+        assertThat(messages.get(0).skipped).isGreaterThan(0);
+        assertThat(stream2String(messages.get(messages.size() - 1).in)).isEqualTo("m5");
+        for (DataStore.Message m : messages) {
+            m.in.close();
+        }
+    }
+
+    @Test
+    public void testLease() throws Exception {
+        queue.subscribe("foo");
+        assertThat(queue.lease("foo", 2, Long.MAX_VALUE, 60000)).isNull();
+        for (int i = 0; i < 3; i++) {
+            queue.post(string2Stream("hello" + i));
+        }
+
+        Lease a = queue.lease("foo", 2, Long.MAX_VALUE, 60000);
+        assertThat(a.redelivered).isFalse();
+        assertThat(a.messages).hasSize(2);
+        assertThat(stream2String(a.messages.get(0).in)).isEqualTo("hello0");
+        assertThat(stream2String(a.messages.get(1).in)).isEqualTo("hello1");
+        Lease b = queue.lease("foo", 2, Long.MAX_VALUE, 60000);
+        assertThat(b.messages).hasSize(1);
+        assertThat(stream2String(b.messages.get(0).in)).isEqualTo("hello2");
+        assertThat(queue.lease("foo", 2, Long.MAX_VALUE, 60000)).isNull();
+
+        queue.ack("foo", b.id);
+        assertThatThrownBy(() -> queue.ack("foo", b.id)).isInstanceOf(ClientErrorException.class);
+        assertThatThrownBy(() -> queue.ack("foo", "bogus")).isInstanceOf(ClientErrorException.class);
+        StringBuilder stats = new StringBuilder();
+        queue.appendStats(stats);
+        assertThat(stats.toString()).contains("leases 1\n");
+        queue.ack("foo", a.id);
+        assertThat(getCheckpoint("foo")).isEqualTo(queue.getNextLSN());
+    }
+
+    @Test
+    public void testLeaseRedelivery() throws Exception {
+        queue.subscribe("foo");
+        queue.post(string2Stream("hello"));
+        queue.post(string2Stream("world"));
+
+        Lease a = queue.lease("foo", 1, Long.MAX_VALUE, 1);
+        assertThat(stream2String(a.messages.get(0).in)).isEqualTo("hello");
+        Thread.sleep(10);
+        // the lease timed out, so it goes out again before anything new
+        Lease b = queue.lease("foo", 10, Long.MAX_VALUE, 60000);
+        assertThat(b.redelivered).isTrue();
+        assertThat(b.id).isEqualTo(a.id);
+        assertThat(b.messages).hasSize(1);
+        assertThat(stream2String(b.messages.get(0).in)).isEqualTo("hello");
+        Lease c = queue.lease("foo", 10, Long.MAX_VALUE, 60000);
+        assertThat(c.redelivered).isFalse();
+        assertThat(stream2String(c.messages.get(0).in)).isEqualTo("world");
+        assertThat(queue.lease("foo", 10, Long.MAX_VALUE, 60000)).isNull();
+    }
+
+    @Test
+    public void testLeaseCheckpoint() throws Exception {
+        queue.subscribe("foo");
+        for (int i = 0; i < 3; i++) {
+            queue.post(string2Stream("hello" + i));
+        }
+        Lease a = queue.lease("foo", 1, Long.MAX_VALUE, 60000);
+        Lease b = queue.lease("foo", 1, Long.MAX_VALUE, 60000);
+        queue.ack("foo", b.id);
+        a.messages.get(0).in.close();
+        b.messages.get(0).in.close();
+
+        // the checkpoint stays at the unacknowledged lease, and so does gc
+        assertThat(getCheckpoint("foo")).isEqualTo(0);
         queue.gcNow();
-        assertThat(Files.list(dir.resolve("data")).count()).isEqualTo(0);
+        assertThat(queue.getFirstLSN()).isEqualTo(0);
+        queue.stop();
+        queue = new Queue(dir, 32);
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("hello0");
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("hello1");
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("hello2");
+    }
+
+    @Test
+    public void testConcurrentLease() throws Exception {
+        int nmessages = 500;
+        int nthreads = 8;
+        queue = new Queue(dir, 256);
+        queue.subscribe("foo");
+        for (int i = 0; i < nmessages; i++) {
+            queue.post(string2Stream(Integer.toString(i)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+        List<Future<List<String>>> consumers = new ArrayList<>();
+        for (int t = 0; t < nthreads; t++) {
+            boolean ack = t != 0;
+            consumers.add(executor.submit(() -> {
+                List<String> got = new ArrayList<>();
+                // once the others are done it would keep getting its own
+                // leases back, so it gives up after a while
+                for (int leases = 0; ack || leases < 50; leases++) {
+                    Lease lease = queue.lease("foo", 3, Long.MAX_VALUE, ack ? 60000 : 1);
+                    if (lease == null) {
+                        return got;
+                    }
+                    for (DataStore.Message m : lease.messages) {
+                        String s = stream2String(m.in);
+                        if (ack) {
+                            got.add(s);
+                        }
+                    }
+                    if (ack) {
+                        queue.ack("foo", lease.id);
+                    } else {
+                        // let it time out so someone else gets it
+                        Thread.sleep(2);
+                    }
+                }
+                return got;
+            }));
+        }
+
+        List<String> all = new ArrayList<>();
+        for (Future<List<String>> f : consumers) {
+            all.addAll(f.get());
+        }
+        executor.shutdown();
+
+        // the member that never acks may have had the last leases
+        long deadline = System.currentTimeMillis() + 10000;
+        while (all.size() < nmessages && System.currentTimeMillis() < deadline) {
+            Lease lease = queue.lease("foo", 3, Long.MAX_VALUE, 60000);
+            if (lease == null) {
+                Thread.sleep(2);
+                continue;
+            }
+            for (DataStore.Message m : lease.messages) {
+                all.add(stream2String(m.in));
+            }
+            queue.ack("foo", lease.id);
+        }
+
+        // nothing is lost and nothing acknowledged is delivered twice
+        assertThat(all).hasSize(nmessages);
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < nmessages; i++) {
+            expected.add(Integer.toString(i));
+        }
+        assertThat(new HashSet<>(all)).isEqualTo(expected);
+        assertThat(getCheckpoint("foo")).isEqualTo(queue.getNextLSN());
+    }
+
+    @Test
+    public void testLostUnsyncedTail() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("durability", "os");
+        queue = new Queue(dir, 1024, new TopicConfig(props));
+        queue.subscribe("foo");
+        queue.post(string2Stream("hello"));
+        long lsn = queue.getNextLSN();
+        queue.post(string2Stream("world"));
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("hello");
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("world");
+        queue.stop();
+
+        // power loss before world was synced, but after its checkpoint was
+        try (FileChannel out = FileChannel.open(dir.resolve("data").resolve("0"), StandardOpenOption.WRITE)) {
+            out.truncate(lsn);
+        }
+        queue = new Queue(dir, 1024, new TopicConfig(props));
+        assertThat(queue.getNextLSN()).isEqualTo(lsn);
+        assertThat(getCheckpoint("foo")).isEqualTo(lsn);
+        assertThat(queue.get("foo").in).isNull();
+        queue.post(string2Stream("again"));
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo("again");
+    }
+
+    @Test
+    public void testSubscribeDuringFailedFlush() throws Exception {
+        queue = new Queue(dir, 64);
+        queue.post(string2Stream("hello"));
+        queue.post(string2Stream(Strings.repeat("x", 40)));
+        queue.stop();
+        Properties props = new Properties();
+        props.setProperty("groupCommit.maxDelayMs", "1000");
+        queue = new Queue(dir, 64, new TopicConfig(props));
+        long lsn = queue.getNextLSN();
+        assertThat(lsn).isEqualTo(128);
+
+        // the rollover to the next chunk fails
+        Path chunk = dir.resolve("data").resolve(Long.toHexString(lsn));
+        Files.createDirectory(chunk);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> post = executor.submit(() -> {
+            queue.post(string2Stream(Strings.repeat("y", 20)));
+            return null;
+        });
+        Thread.sleep(200);
+        queue.subscribe("foo");
+        assertThatThrownBy(post::get).hasCauseInstanceOf(IOException.class);
+        executor.shutdown();
+        Files.delete(chunk);
+
+        // the failed message's LSNs were handed out again
+        String world = Strings.repeat("w", 40);
+        queue.post(string2Stream(world));
+        assertThat(getCheckpoint("foo")).isEqualTo(lsn);
+        assertThat(stream2String(queue.get("foo").in)).isEqualTo(world);
+        assertThat(queue.get("foo").in).isNull();
     }
 
     @Test
@@ -190,7 +711,7 @@ public class QueueTest {
         queue.post(string2Stream("hello"));
         queue.post(string2Stream("world"));
         assertThat(stream2String(queue.get("foo").in)).isEqualTo("hello");
-        queue = new Queue(dir, 16);
+        queue = new Queue(dir, 32);
         assertThat(stream2String(queue.get("foo").in)).isEqualTo("world");
         queue.unsubscribe("foo");
     }
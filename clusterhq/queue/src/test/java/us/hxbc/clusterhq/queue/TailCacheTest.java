@@ -0,0 +1,102 @@
+package us.hxbc.clusterhq.queue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TailCacheTest {
+    private TailCache cache;
+
+    @Before
+    public void setup() {
+        cache = new TailCache(8, 4);
+    }
+
+    @Test
+    public void testGet() {
+        cache.put(Arrays.asList(0L, 10L), Arrays.asList(new byte[]{1, 2}, new byte[]{3}));
+        assertThat(cache.get(0)).isEqualTo(new byte[]{1, 2});
+        assertThat(cache.get(10)).isEqualTo(new byte[]{3});
+        assertThat(cache.get(5)).isNull();
+    }
+
+    @Test
+    public void testWrapAround() {
+        cache.put(Arrays.asList(0L, 10L, 20L), Arrays.asList(new byte[]{1, 2, 3}, new byte[]{4, 5, 6},
+                new byte[]{7, 8, 9}));
+        // the last message wraps around and overwrites the first one
+        assertThat(cache.get(0)).isNull();
+        assertThat(cache.get(10)).isEqualTo(new byte[]{4, 5, 6});
+        assertThat(cache.get(20)).isEqualTo(new byte[]{7, 8, 9});
+    }
+
+    @Test
+    public void testTooBig() {
+        cache.put(Collections.singletonList(0L), Collections.singletonList(new byte[]{1}));
+        cache.put(Collections.singletonList(10L), Collections.singletonList(new byte[4]));
+        assertThat(cache.get(0)).isEqualTo(new byte[]{1});
+        assertThat(cache.get(10)).isNull();
+    }
+
+    @Test
+    public void testConcurrentPutGet() throws Exception {
+        // every payload is its LSN repeated, so a reader that got bytes of
+        // a message that overwrote the one it asked for can tell
+        AtomicLong written = new AtomicLong();
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Integer>> readers = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            readers.add(executor.submit(() -> {
+                int torn = 0;
+                while (!done.get()) {
+                    long lsn = Math.max(0, written.get() - 1);
+                    byte[] payload = cache.get(lsn);
+                    if (payload != null) {
+                        for (byte b : payload) {
+                            if (b != (byte) lsn) {
+                                torn++;
+                            }
+                        }
+                    }
+                }
+                return torn;
+            }));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        for (long lsn = 0; System.nanoTime() < deadline; lsn++) {
+            byte[] payload = new byte[3];
+            Arrays.fill(payload, (byte) lsn);
+            cache.put(Collections.singletonList(lsn), Collections.singletonList(payload));
+            written.set(lsn);
+        }
+        done.set(true);
+        for (Future<Integer> f : readers) {
+            assertThat(f.get()).isEqualTo(0);
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testStats() {
+        cache.put(Collections.singletonList(0L), Collections.singletonList(new byte[]{1}));
+        cache.get(0);
+        cache.get(10);
+        StringBuilder stats = new StringBuilder();
+        TailCache.appendStats(stats, Collections.singletonList(cache));
+        assertThat(stats.toString()).contains("tailCache.hits 1\n", "tailCache.misses 1\n",
+                "tailCache.hitRatio 0.5\n", "tailCache.usedBytes 1\n", "tailCache.capacityBytes 8\n");
+    }
+}